@@ -21,6 +21,7 @@ import java.io.File;
 import java.util.ArrayList;
 
 import android.app.Activity;
+import android.app.ProgressDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Context;
@@ -181,7 +182,13 @@ public abstract class ActivityCommon extends Activity implements FpTrackTimeline
         if (FpServiceRendering.hasInstance()) {
             onServiceReady();
         } else {
-            startService(new Intent(this, FpServiceRendering.class));
+            // The service starts up in the background
+            FpServiceRendering.whenReady(this, new FpServiceRendering.ReadyCallback() {
+                @Override
+                public void onServiceReady(FpServiceRendering service) {
+                    ActivityCommon.this.onServiceReady();
+                }
+            });
         }
 
         Window window = getWindow();
@@ -435,7 +442,7 @@ public abstract class ActivityCommon extends Activity implements FpTrackTimeline
     /**
      * Called when the timeline change has changed.
      */
-    public void onTimelineChanged() {
+    public void onTimelineChanged(FpTrackTimelineDiff diff) {
     }
 
     static final int MENU_SORT = 1;
@@ -516,6 +523,23 @@ public abstract class ActivityCommon extends Activity implements FpTrackTimeline
      * Notification that we changed some playlist members
      */
     protected static final int MSG_NOTIFY_PLAYLIST_CHANGED = 6;
+    /**
+     * Shows the deletion progress; sent to the UI handler
+     */
+    protected static final int MSG_DELETE_PROGRESS = 7;
+    /**
+     * The deletion is over; sent to the UI handler
+     */
+    protected static final int MSG_DELETE_DONE = 8;
+
+    /**
+     * The deletion in progress, if any
+     */
+    private volatile FpMediaDeleter mDeleter;
+    /**
+     * Shows the deletion progress
+     */
+    private ProgressDialog mDeleteDialog;
 
     @Override
     public boolean handleMessage(Message message) {
@@ -543,14 +567,9 @@ public abstract class ActivityCommon extends Activity implements FpTrackTimeline
                 FpPlaylistTask playlistTask = new FpPlaylistTask(playlistId, playlistName);
                 playlistTask.audioIds = new ArrayList<Long>();
 
-                FpTrack song;
-                FpServiceRendering service = FpServiceRendering.get(this);
-                for (int i = 0;; i++) {
-                    song = service.getSongByQueuePosition(i);
-                    if (song == null) {
-                        break;
-                    }
-                    playlistTask.audioIds.add(song.id);
+                FpTrackTimelineSnapshot snapshot = FpServiceRendering.get(this).getTimelineSnapshot();
+                for (int i = 0; i < snapshot.size(); i++) {
+                    playlistTask.audioIds.add(snapshot.getId(i));
                 }
 
                 addToPlaylist(playlistTask);
@@ -573,6 +592,17 @@ public abstract class ActivityCommon extends Activity implements FpTrackTimeline
                 delete((Intent) message.obj);
                 break;
             }
+            case MSG_DELETE_PROGRESS: {
+                showDeleteProgress(message.arg1, message.arg2);
+                break;
+            }
+            case MSG_DELETE_DONE: {
+                if (mDeleteDialog != null) {
+                    mDeleteDialog.dismiss();
+                    mDeleteDialog = null;
+                }
+                break;
+            }
             case MSG_NOTIFY_PLAYLIST_CHANGED: {
                 // this is a NOOP here: super classes might implement this.
                 break;
@@ -642,21 +672,41 @@ public abstract class ActivityCommon extends Activity implements FpTrackTimeline
         String message = null;
         Resources res = getResources();
 
+        // Report the progress on the UI thread, the latest count only
+        FpMediaDeleter deleter = new FpMediaDeleter(this, new FpMediaDeleter.Listener() {
+            @Override
+            public void onDeleteProgress(int done, int total) {
+                mUiHandler.removeMessages(MSG_DELETE_PROGRESS);
+                mUiHandler.obtainMessage(MSG_DELETE_PROGRESS, done, total).sendToTarget();
+            }
+        });
+        mDeleter = deleter;
+
         if (type == FpUtilsMedia.TYPE_FILE) {
             String file = intent.getStringExtra(AdapterLibrary.DATA_FILE);
-            boolean success = FpUtilsMedia.deleteFile(new File(file));
-            if (!success) {
+            long[] ids = deleter.deleteFile(new File(file));
+            FpServiceRendering.get(this).removeSongs(ids);
+            if (deleter.getFailedCount() > 0) {
                 message = res.getString(R.string.fp_menu_notif_delete_error, file);
             }
         } else {
             if (type == FpUtilsMedia.TYPE_PLAYLIST) {
                 FpPlaylist.deletePlaylist(getContentResolver(), id);
             } else {
-                int count = FpServiceRendering.get(this).deleteMedia(type, id);
+                int count = FpServiceRendering.get(this).deleteMedia(type, id, deleter);
                 message = res.getQuantityString(R.plurals.fp_plurals_song_deleted, count, count);
             }
         }
 
+        // Stopped by the user: only part of it is gone
+        if (deleter.isCancelled()) {
+            message = res.getString(R.string.fp_menu_notif_delete_partial, intent.getStringExtra(AdapterLibrary.DATA_TITLE));
+        }
+
+        mDeleter = null;
+        mUiHandler.removeMessages(MSG_DELETE_PROGRESS);
+        mUiHandler.sendEmptyMessage(MSG_DELETE_DONE);
+
         if (message == null) {
             message = res.getString(R.string.fp_menu_notif_delete_success, intent.getStringExtra(AdapterLibrary.DATA_TITLE));
         }
@@ -664,6 +714,38 @@ public abstract class ActivityCommon extends Activity implements FpTrackTimeline
         showToast(message, Toast.LENGTH_SHORT);
     }
 
+    /**
+     * Shows the progress of the current deletion; called on the UI thread
+     */
+    private void showDeleteProgress(int done, int total) {
+        final FpMediaDeleter deleter = mDeleter;
+        if (deleter == null || total < 2 || isFinishing()) {
+            return;
+        }
+
+        if (mDeleteDialog == null) {
+            mDeleteDialog = new ProgressDialog(this);
+            mDeleteDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            mDeleteDialog.setMessage(getString(R.string.fp_menu_notif_delete_progress));
+            mDeleteDialog.setMax(total);
+            mDeleteDialog.setCanceledOnTouchOutside(false);
+            mDeleteDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+                @Override
+                public void onCancel(DialogInterface dialog) {
+                    deleter.cancel();
+                }
+            });
+            mDeleteDialog.setButton(DialogInterface.BUTTON_NEGATIVE, getString(android.R.string.cancel), new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    deleter.cancel();
+                }
+            });
+            mDeleteDialog.show();
+        }
+        mDeleteDialog.setProgress(done);
+    }
+
     /**
      * Creates and displays a new toast message
      */
@@ -71,12 +71,9 @@ public class ActivityEqualizer extends Activity {
     
     protected ElementKnob mVolumeKnob;
     
-    protected static MediaPlayer sMediaPlayer = null;
-    
     protected static AudioManager sAudioManager = null;
     
     static {
-        sMediaPlayer = FpServiceRendering.get(ActivityCommon.getContext()).getFpMediaPlayer().getPlayer();
         sAudioManager = (AudioManager) ActivityCommon.getContext().getSystemService(Context.AUDIO_SERVICE);
     }
     
@@ -211,44 +208,16 @@ public class ActivityEqualizer extends Activity {
     	public static void saveToCache(boolean fromUser) {
             Presets.updateActionButton(fromUser);
     		
-            // Equalizer was set
-            if (EqualizerUtil.getEqualizer() != null) {
-                // Get the preferences editor
-                SharedPreferences.Editor editor = PreferenceUtils.edit();
-                
-                // Store the state
-                editor.putBoolean(Constants.Keys.SETTINGS_EQUALIZER_ENABLED, mActivity.mButtonEnable.isChecked());
-                
-                // Get the band count
-                final int bandCount = MediaPlayer.Equalizer.getBandCount();
-                
-                // Prepare the bands
-                final float[] bands = new float[bandCount + 1];
-                
-                // First item is pre-amplification
-                bands[0] = EqualizerUtil.getEqualizer().getPreAmp();
-                
-                // Store the local values
-                for (int i = 0; i < bandCount; ++i) {
-                    bands[i + 1] = EqualizerUtil.getEqualizer().getAmp(i);
-                }
-                
-                // Save the bands
-                PreferenceUtils.putFloatArray(editor, Constants.Keys.SETTINGS_EQUALIZER_VALUES, bands);
-                
-                // Save the preset
-                editor.putInt(Constants.Keys.SETTINGS_EQUALIZER_PRESET, mActivity.mButtonPresets.getSelectedItemPosition());
-                
-                // Get the presets count
-                int presetsCount = MediaPlayer.Equalizer.getPresetCount();
-                int presetPosition = mActivity.mButtonPresets.getSelectedItemPosition();
-                
-                // Store the preset type
-                Presets.type = presetPosition > presetsCount - 1 ? Presets.PRESET_CUSTOM : Presets.PRESET_DEFAULT;
-                
-                // Save the settings
-                editor.commit();
-            }
+            // Get the presets count
+            int presetsCount = MediaPlayer.Equalizer.getPresetCount();
+            int presetPosition = mActivity.mButtonPresets.getSelectedItemPosition();
+
+            // Store the preset type
+            Presets.type = presetPosition > presetsCount - 1 ? Presets.PRESET_CUSTOM : Presets.PRESET_DEFAULT;
+
+            // Save the preset; the bands and state are in the equalizer already,
+            // they are written to the preferences in the background
+            EqualizerUtil.setPreset(presetPosition);
     	}
     	
     	/**
@@ -410,27 +379,10 @@ public class ActivityEqualizer extends Activity {
                 // Get the bands
                 float[] bands = Presets.getCustom(position - presetsCount);
 
-                // Get the preferences editor
-                SharedPreferences.Editor editor = PreferenceUtils.edit();
-
-                // Store the bands
-                PreferenceUtils.putFloatArray(editor, Constants.Keys.SETTINGS_EQUALIZER_VALUES, bands);
-
-                try {
-                    // Refresh the EQ
-                    MediaPlayer.Equalizer equalizer = EqualizerUtil.getEqualizer();
-
-                    // Set the pre-amp
-                    equalizer.setPreAmp(bands[0]);
-
-                    // Set the amplification
-                    for (int i = 0; i < bands.length - 1; ++i) {
-                        equalizer.setAmp(i, bands[i + 1]);
-                    }
-
-                    // Set the equalizer
-                    EqualizerUtil.setEqualizer(equalizer);
-                } catch (Exception e) {}
+                // Set the bands
+                if (null != bands) {
+                    EqualizerUtil.setBands(bands);
+                }
             } else {
                 // Set the appropiate equalizer
                 EqualizerUtil.setEqualizer(MediaPlayer.Equalizer.createFromPreset(position));
@@ -523,11 +475,11 @@ public class ActivityEqualizer extends Activity {
 
             try {
                 // First item is pre-amplification
-                bandsArray.put(0, EqualizerUtil.getEqualizer().getPreAmp());
+                bandsArray.put(0, EqualizerUtil.getPreAmp());
 
                 // Store the local values
                 for (int i = 0; i < bandCount; ++i) {
-                    bandsArray.put(i + 1, EqualizerUtil.getEqualizer().getAmp(i));
+                    bandsArray.put(i + 1, EqualizerUtil.getAmp(i));
                 }
             } catch (JSONException e1) {}
 
@@ -655,17 +607,12 @@ public class ActivityEqualizer extends Activity {
 
         @Override
         public void onProgressChanged(float value) {
-            // Set the amplification
-            if (null != EqualizerUtil.getEqualizer()) {
-                EqualizerUtil.getEqualizer().setAmp(index, value);
-            }
+            // Set the amplification; the players are updated on the next frame
+            EqualizerUtil.setAmp(index, value);
         	
             // Store the changes
             ActivityEqualizer.Presets.saveToCache();
             
-            // Update the player's eq
-            EqualizerUtil.updatePlayer(sMediaPlayer);
-            
             // Toggle the action
             mButtonAction.setVisibility(View.VISIBLE);
         }
@@ -679,18 +626,18 @@ public class ActivityEqualizer extends Activity {
     	Tracker.trackPageview(this);
 
         // Set the checked button state
-        mButtonEnable.setChecked(PreferenceUtils.getBoolean(Constants.Keys.SETTINGS_EQUALIZER_ENABLED, Constants.Defaults.SETTINGS_EQUALIZER_ENABLED));
+        mButtonEnable.setChecked(EqualizerUtil.isEnabled());
         
         // Set the checked button listener
         mButtonEnable.setOnCheckedChangeListener(new OnCheckedChangeListener() {
             @Override
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+            	// Update the players' eq
+            	EqualizerUtil.setEnabled(isChecked);
+            	
             	// Store the changes
             	ActivityEqualizer.Presets.saveToCache(false);
                 
-                // Update the player's eq
-                EqualizerUtil.updatePlayer(sMediaPlayer);
-                
                 // Inform the user
                 Toast.makeText(ActivityEqualizer.this, ActivityEqualizer.this.getText(isChecked ? R.string.fp_equalizer_toast_enabled : R.string.fp_equalizer_toast_disabled), Toast.LENGTH_LONG).show();
             }
@@ -728,31 +675,24 @@ public class ActivityEqualizer extends Activity {
                     	Presets.loadPreset(pos);
                     	
                     	// Update the UI
-                    	if (null != EqualizerUtil.getEqualizer()) {
-                            // Set the preamplifications
-                            mPreAmpKnob.setPercentage(
-                                Math.round(
-                                    100 * (
-                                        (null != EqualizerUtil.getEqualizer() ? EqualizerUtil.getEqualizer().getPreAmp() : 0) + 20
-                                    ) / 40
-                                )
-                            );
-
-                            // Set the bars
-                            for (int i = 0; i < MediaPlayer.Equalizer.getBandCount(); ++i) {
-                                EqualizerBar bar = (EqualizerBar) mBandsContainers.getChildAt(i);
-                                if (null != bar) {
-                                    bar.setValue(EqualizerUtil.getEqualizer().getAmp(i));
-                                }
+                    	// Set the preamplifications
+                    	mPreAmpKnob.setPercentage(
+                            Math.round(
+                                100 * (EqualizerUtil.getPreAmp() + 20) / 40
+                            )
+                    	);
+
+                    	// Set the bars
+                    	for (int i = 0; i < MediaPlayer.Equalizer.getBandCount(); ++i) {
+                            EqualizerBar bar = (EqualizerBar) mBandsContainers.getChildAt(i);
+                            if (null != bar) {
+                                bar.setValue(EqualizerUtil.getAmp(i));
                             }
                     	}
                     	
                     	// Store the settings
                     	ActivityEqualizer.Presets.saveToCache(false);
                     	
-                    	// Update the player's eq
-                    	EqualizerUtil.updatePlayer(sMediaPlayer);
-                    	
                     	// Inform the user
                         Toast.makeText(ActivityEqualizer.this, ActivityEqualizer.this.getString(R.string.fp_equalizer_toast_loaded, mButtonPresets.getSelectedItem().toString()), Toast.LENGTH_LONG).show();
                     }
@@ -769,28 +709,20 @@ public class ActivityEqualizer extends Activity {
         // Pre-amplifier state
         mPreAmpKnob.setPercentage(
             Math.round(
-                100 * (
-                    (null != EqualizerUtil.getEqualizer() ? EqualizerUtil.getEqualizer().getPreAmp() : 0) + 20
-                ) / 40
+                100 * (EqualizerUtil.getPreAmp() + 20) / 40
             )
         );
         
         // Pre-amplifier change
         mPreAmpKnob.setListener(new ElementKnob.Listener() {
             public void onRotate(int value) {
-                // Valid equalizer
-                if (null != EqualizerUtil.getEqualizer()) {
-                    // Set preamp
-                    EqualizerUtil.getEqualizer().setPreAmp(
-                        Math.round(value * 40 / 100) - 20
-                    );
-                }
+                // Set preamp; the players are updated on the next frame
+                EqualizerUtil.setPreAmp(
+                    Math.round(value * 40 / 100) - 20
+                );
                 
                 // Store the changes
                 ActivityEqualizer.Presets.saveToCache();
-                
-                // Update the player's eq
-                EqualizerUtil.updatePlayer(sMediaPlayer);
             }
 
             public void onChange(int percentage) {}
@@ -805,9 +737,7 @@ public class ActivityEqualizer extends Activity {
             );
             
             // Set the value
-            if (null != EqualizerUtil.getEqualizer()) {
-            	equalizerBar.setValue(EqualizerUtil.getEqualizer().getAmp(bandIndex));
-            }
+            equalizerBar.setValue(EqualizerUtil.getAmp(bandIndex));
 
             // Set the listener
             equalizerBar.setListener(new BandListener(bandIndex));
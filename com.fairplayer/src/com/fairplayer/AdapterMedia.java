@@ -146,6 +146,10 @@ public class AdapterMedia extends BaseAdapter implements AdapterLibrary, View.On
      * Setting this to FpUtilsMedia.TYPE_INVALID disables cover artwork
      */
     private int mCoverCacheType;
+    /**
+     * Position of the last row bound, to tell the scroll direction
+     */
+    private int mLastBoundPosition = -1;
     /**
      * Alphabet to be used for SectionIndexer. Populated in #buildAlphabet().
      */
@@ -563,10 +567,32 @@ public class AdapterMedia extends BaseAdapter implements AdapterLibrary, View.On
         }
 
         holder.cover.setCover(mCoverCacheType, cacheId);
+        prefetchCover(position, parent.getChildCount());
 
         return view;
     }
 
+    /**
+     * Prefetches the cover of the row one screen ahead of the bound row, in
+     * the scroll direction, so the next screen is mostly cached
+     *
+     * @param position The position of the bound row
+     * @param screen The number of rows on screen
+     */
+    private void prefetchCover(int position, int screen) {
+        int direction = position < mLastBoundPosition ? -1 : 1;
+        mLastBoundPosition = position;
+        if (mCoverCacheType == FpUtilsMedia.TYPE_INVALID || screen == 0) {
+            return;
+        }
+
+        int target = position + direction * screen;
+        Cursor cursor = mCursor;
+        if (target >= 0 && target < cursor.getCount() && cursor.moveToPosition(target)) {
+            ElementSmallCover.prefetchCover(mCoverCacheType, cursor.getLong(1));
+        }
+    }
+
     /**
      * Returns the type of the current limiter.
      *
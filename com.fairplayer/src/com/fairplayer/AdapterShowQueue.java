@@ -23,7 +23,7 @@ import android.graphics.drawable.GradientDrawable.Orientation;
 import android.app.Activity;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.view.LayoutInflater;
 import android.widget.TextView;
 
@@ -33,20 +33,55 @@ import android.text.style.ForegroundColorSpan;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
 
+/**
+ * Shows a timeline snapshot; rows read their song from the snapshot only
+ * when they are bound. Songs that are not populated yet show a placeholder
+ * and never block the UI thread.
+ */
 public class AdapterShowQueue
-        extends ArrayAdapter<FpTrack> {
+        extends BaseAdapter {
 
     private int mResource;
     private int mHighlightRow;
     private Context mContext;
+    private FpTrackTimelineSnapshot mSnapshot;
 
     public AdapterShowQueue(Context context, int resource) {
-        super(context, resource);
         mResource = resource;
         mContext = context;
         mHighlightRow = -1;
     }
 
+    /**
+     * Shows a new timeline snapshot; only the visible rows are bound again
+     */
+    public void setSnapshot(FpTrackTimelineSnapshot snapshot) {
+        mSnapshot = snapshot;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Version of the snapshot shown, -1 if none
+     */
+    public long getVersion() {
+        return null == mSnapshot ? -1 : mSnapshot.getVersion();
+    }
+
+    @Override
+    public int getCount() {
+        return null == mSnapshot ? 0 : mSnapshot.size();
+    }
+
+    @Override
+    public FpTrack getItem(int position) {
+        return mSnapshot.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
     /**
      * Tells the adapter to highlight a specific row id
      * Set this to -1 to disable the feature
@@ -89,6 +124,11 @@ public class AdapterShowQueue
             row.getTextView().setText(sb);
             row.getTextView().setTextColor(Theme.Resources.getColor(R.color.fp_color_row_title));
             row.getCoverView().setCover(FpUtilsMedia.TYPE_ALBUM, song.albumId);
+        } else {
+            // Not populated yet: the row is bound again with the next snapshot
+            row.getTextView().setText(R.string.fp_menu_queue_loading);
+            row.getTextView().setTextColor(Theme.Resources.getColor(R.color.fp_color_row_subtitle));
+            row.getCoverView().clearCover();
         }
 
         row.highlightRow(position == mHighlightRow);
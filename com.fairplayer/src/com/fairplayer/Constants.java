@@ -64,6 +64,8 @@ public class Constants {
         public static final String SETTINGS_EQUALIZER_CUSTOM_PRESETS_BANDS = "settings_equalizer_custom_presets_bands";
         public static final String SETTINGS_BLUR_KEEP_PLAYING_ENABLED = "settings_blur_keep_playing_enabled";
         public static final String SETTINGS_BLUR_KEEP_PLAYING_VOLUME = "settings_blur_keep_playing_volume";
+        public static final String SETTINGS_CROSSFADE_ENABLED = "settings_crossfade_enabled";
+        public static final String SETTINGS_CROSSFADE_DURATION = "settings_crossfade_duration";
         
         // Themes
         public static final String SETTINGS_THEME_PACKAGE_NAME = "settings_theme_package_name";
@@ -113,6 +115,8 @@ public class Constants {
         public static final String SETTINGS_EQUALIZER_CUSTOM_PRESETS_BANDS = "{}";
         public static final boolean SETTINGS_BLUR_KEEP_PLAYING_ENABLED = false;
         public static final int SETTINGS_BLUR_KEEP_PLAYING_VOLUME = 50;
+        public static final boolean SETTINGS_CROSSFADE_ENABLED = false;
+        public static final int SETTINGS_CROSSFADE_DURATION = 5;
 
         // Themes
         public static final String SETTINGS_THEME_PACKAGE_NAME = "";
@@ -23,9 +23,6 @@ import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
 import android.graphics.drawable.BitmapDrawable;
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Message;
 import android.util.AttributeSet;
 import android.util.LruCache;
 import android.widget.ImageView;
@@ -39,22 +36,12 @@ import android.widget.ImageView;
  * The cover will automatically be fetched & scaled in a background
  * thread on cache miss
  */
-public class ElementSmallCover extends ImageView implements Handler.Callback {
+public class ElementSmallCover extends ImageView {
 
     /**
-     * Context of constructor
+     * Shared background loader
      */
-    private Context mContext;
-    
-    /**
-     * UI Thread handler
-     */
-    private static Handler sUiHandler;
-    
-    /**
-     * Worker thread handler
-     */
-    private static Handler sHandler;
+    private static FpCoverLoader sLoader;
     
     /**
      * Our private LRU cache
@@ -66,27 +53,6 @@ public class ElementSmallCover extends ImageView implements Handler.Callback {
      */
     private FpCoverStore.CoverKey mExpectedKey;
 
-    /**
-     * Cover message we are passing around using mHandler
-     */
-    private static class CoverMsg {
-
-        public FpCoverStore.CoverKey key; // A cache key identifying this RPC
-        public ElementSmallCover view;      // The view we are updating
-
-        CoverMsg(FpCoverStore.CoverKey key, ElementSmallCover view) {
-            this.key = key;
-            this.view = view;
-        }
-
-        /**
-         * Returns true if the view still requires updating
-         */
-        public boolean isRecent() {
-            return this.key.equals(this.view.mExpectedKey);
-        }
-    }
-
     /**
      * Clear the cache
      */
@@ -106,93 +72,69 @@ public class ElementSmallCover extends ImageView implements Handler.Callback {
      */
     public ElementSmallCover(Context context, AttributeSet attributes) {
         super(context, attributes);
-        mContext = context;
         if (sBitmapLruCache == null) {
             ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
             int lruSize = am.getMemoryClass() / 10; // use ~10% for LRU
             lruSize = lruSize < 2 ? 2 : lruSize; // LRU will always be at least 2MiB
             sBitmapLruCache = new BitmapLruCache(lruSize * 1024 * 1024);
         }
-        if (sUiHandler == null) {
-            sUiHandler = new Handler(this);
-        }
-        if (sHandler == null) {
-            HandlerThread thread = new HandlerThread(ElementSmallCover.class.getSimpleName());
-            thread.start();
-            sHandler = new Handler(thread.getLooper(), this);
+        if (sLoader == null) {
+            sLoader = new FpCoverLoader(context, sBitmapLruCache);
         }
     }
 
     /**
-     * mHandler and mUiHandler callbacks
+     * Attempts to set the image of this cover
+     * Must be called from an UI thread
+     *
+     * @param type The Media type
+     * @param id The id of this media type to query
      */
-    private static final int MSG_CREATE_COVER = 61;
-    private static final int MSG_DRAW_COVER = 62;
-
-    @Override
-    public boolean handleMessage(Message message) {
-        CoverMsg payload = (CoverMsg) message.obj;
-
-        if (!payload.isRecent()) {
-            return false;
+    public void setCover(int type, long id) {
+        mExpectedKey = new FpCoverStore.CoverKey(type, id, FpCoverStore.SIZE_SMALL);
+        if (drawFromCache(mExpectedKey, false)) {
+            // Drop the request of the previous key, if still pending
+            sLoader.cancel(this);
+        } else {
+            sLoader.load(mExpectedKey, this);
         }
+    }
 
-        switch (message.what) {
-            case MSG_CREATE_COVER: {
-                // This message was sent due to a cache miss, but the cover might got cached in the meantime
-                Bitmap bitmap = sBitmapLruCache.get(payload.key);
-                
-                // No bitmap found
-                if (bitmap == null) {
-                    do {
-                        // Album
-                        if (payload.key.mediaType == FpUtilsMedia.TYPE_ALBUM) {
-                            // Valid song
-                            FpTrack song = FpUtilsMedia.getSongByTypeId(mContext.getContentResolver(), payload.key.mediaType, payload.key.mediaId);
-                            if (null != song) {
-                                // Get the song cover
-                                bitmap = song.getSmallCover(mContext);
-                                
-                                // Valid bitmap
-                                if (null != bitmap) {
-                                    break;
-                                }
-                            }
-                        }
-                    
-                        // Item has no cover: return a failback
-                        bitmap = FpCoverBitmap.generateDefaultCover(mContext, FpCoverStore.SIZE_SMALL, FpCoverStore.SIZE_SMALL);
-                    } while (false);
-                }
-                
-                // bitmap is non null: store in LRU cache and draw it
-                sBitmapLruCache.put(payload.key, bitmap);
-                sUiHandler.sendMessage(sUiHandler.obtainMessage(MSG_DRAW_COVER, payload));
-                break;
-            }
-            case MSG_DRAW_COVER: {
-                // draw the cover into view. must be called from ui thread handler
-                payload.view.drawFromCache(payload.key, true);
-                break;
-            }
-            default:
-                return false;
-        }
-        return true;
+    /**
+     * Shows no cover and drops the pending request, if any
+     * Must be called from an UI thread
+     */
+    public void clearCover() {
+        mExpectedKey = null;
+        sLoader.cancel(this);
+        setImageBitmap(null);
     }
 
     /**
-     * Attempts to set the image of this cover
+     * Loads a cover into the cache ahead of its view, after the visible ones
      * Must be called from an UI thread
      *
      * @param type The Media type
      * @param id The id of this media type to query
      */
-    public void setCover(int type, long id) {
-        mExpectedKey = new FpCoverStore.CoverKey(type, id, FpCoverStore.SIZE_SMALL);
-        if (drawFromCache(mExpectedKey, false) == false) {
-            CoverMsg payload = new CoverMsg(mExpectedKey, this);
-            sHandler.sendMessage(sHandler.obtainMessage(MSG_CREATE_COVER, payload));
+    public static void prefetchCover(int type, long id) {
+        if (sLoader == null) {
+            return;
+        }
+
+        FpCoverStore.CoverKey key = new FpCoverStore.CoverKey(type, id, FpCoverStore.SIZE_SMALL);
+        if (sBitmapLruCache.get(key) == null) {
+            sLoader.prefetch(key);
+        }
+    }
+
+    /**
+     * Called by the loader on the UI thread once the cover is cached
+     */
+    void onCoverLoaded(FpCoverStore.CoverKey key) {
+        // The view might have been rebound meanwhile
+        if (key.equals(mExpectedKey)) {
+            drawFromCache(key, true);
         }
     }
 
@@ -17,53 +17,334 @@
  */
 package com.fairplayer;
 
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
 import org.videolan.libvlc.MediaPlayer;
 
+import java.util.ArrayList;
+
+/**
+ * Equalizer state, kept in memory and applied to every registered player.
+ *
+ * Band changes are coalesced into at most one native update per frame and
+ * written to the preferences asynchronously, after the user stops moving
+ * the controls.
+ */
 public class EqualizerUtil {
 
     /**
-     * Current equalizer
+     * Delay (in ms) before the state is written to the preferences
+     */
+    protected static final int PERSIST_DELAY_MS = 500;
+
+    /**
+     * Current equalizer, re-used for every native update
      */
     protected static MediaPlayer.Equalizer sEqualizer = null;
-    
+
+    /**
+     * Current bands; the first item is the pre-amplification
+     */
+    protected static float[] sBands = null;
+
+    /**
+     * Whether the equalizer is enabled
+     */
+    protected static boolean sEnabled = Constants.Defaults.SETTINGS_EQUALIZER_ENABLED;
+
+    /**
+     * Selected preset
+     */
+    protected static int sPreset = Constants.Defaults.SETTINGS_EQUALIZER_PRESET;
+
+    /**
+     * Players the equalizer is applied to
+     */
+    protected static final ArrayList<MediaPlayer> sPlayers = new ArrayList<MediaPlayer>(2);
+
+    /**
+     * A native update is already scheduled
+     */
+    protected static boolean sApplyPending = false;
+
+    /**
+     * Main thread handler
+     */
+    protected static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Applies the state on the next frame
+     */
+    protected static final Choreographer.FrameCallback sFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            apply();
+        }
+    };
+
+    /**
+     * Posts the frame callback from the main thread
+     */
+    protected static final Runnable sFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(sFrameCallback);
+        }
+    };
+
+    /**
+     * Writes the state to the preferences
+     */
+    protected static final Runnable sPersistRunnable = new Runnable() {
+        @Override
+        public void run() {
+            persist();
+        }
+    };
+
+    /**
+     * Register a player; the current state is applied to it right away
+     */
+    public static void registerPlayer(MediaPlayer mediaPlayer) {
+        if (null == mediaPlayer) {
+            return;
+        }
+        synchronized (sPlayers) {
+            if (!sPlayers.contains(mediaPlayer)) {
+                sPlayers.add(mediaPlayer);
+            }
+        }
+        apply();
+    }
+
+    /**
+     * Stop applying the equalizer to a player
+     */
+    public static void unregisterPlayer(MediaPlayer mediaPlayer) {
+        synchronized (sPlayers) {
+            sPlayers.remove(mediaPlayer);
+        }
+    }
+
     /**
      * Update the media player's equalizer
      */
     public static void updatePlayer(MediaPlayer mediaPlayer) {
     	// Player found
     	if (null != mediaPlayer) {
-            // Set the equalizer
-            mediaPlayer.setEqualizer(PreferenceUtils.getBoolean(Constants.Keys.SETTINGS_EQUALIZER_ENABLED, Constants.Defaults.SETTINGS_EQUALIZER_ENABLED) ? getEqualizer() : null);
+            synchronized (sPlayers) {
+                // Set the equalizer
+                mediaPlayer.setEqualizer(isEnabled() ? getEqualizer() : null);
+            }
     	}
     }
-    
+
+    /**
+     * Apply the current state to all the registered players, at once
+     */
+    public static void apply() {
+        synchronized (sPlayers) {
+            sApplyPending = false;
+
+            // Same settings for every player
+            MediaPlayer.Equalizer equalizer = isEnabled() ? getEqualizer() : null;
+            for (MediaPlayer mediaPlayer : sPlayers) {
+                if (!mediaPlayer.isReleased()) {
+                    mediaPlayer.setEqualizer(equalizer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Schedule a native update for the next frame; calls in between
+     * are coalesced
+     */
+    public static void requestApply() {
+        synchronized (sPlayers) {
+            if (sApplyPending) {
+                return;
+            }
+            sApplyPending = true;
+        }
+
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            Choreographer.getInstance().postFrameCallback(sFrameCallback);
+        } else {
+            sHandler.post(sFrameRunnable);
+        }
+    }
+
+    /**
+     * Schedule the state to be written to the preferences
+     */
+    public static void requestPersist() {
+        sHandler.removeCallbacks(sPersistRunnable);
+        sHandler.postDelayed(sPersistRunnable, PERSIST_DELAY_MS);
+    }
+
+    /**
+     * Write the state to the preferences; the file is written in the background
+     */
+    public static void persist() {
+        sHandler.removeCallbacks(sPersistRunnable);
+
+        SharedPreferences.Editor editor = PreferenceUtils.edit();
+        editor.putBoolean(Constants.Keys.SETTINGS_EQUALIZER_ENABLED, isEnabled());
+        editor.putInt(Constants.Keys.SETTINGS_EQUALIZER_PRESET, sPreset);
+        String bands = PreferenceUtils.toJson(getBands());
+        if (null != bands) {
+            editor.putString(Constants.Keys.SETTINGS_EQUALIZER_VALUES, bands);
+        }
+        editor.apply();
+    }
+
     /**
      * Set a new equalizer
      */
     public static void setEqualizer(MediaPlayer.Equalizer equalizer) {
-    	sEqualizer = equalizer;
+        if (null == equalizer) {
+            return;
+        }
+
+        // Copy the values
+        float[] bands = new float[MediaPlayer.Equalizer.getBandCount() + 1];
+        bands[0] = equalizer.getPreAmp();
+        for (int i = 0; i < bands.length - 1; ++i) {
+            bands[i + 1] = equalizer.getAmp(i);
+        }
+        setBands(bands);
     }
-    
+
     /**
      * Get the current equalizer
      */
     public static MediaPlayer.Equalizer getEqualizer() {
-    	// Not set, try a refresh
-    	if (null == sEqualizer) {
-            sEqualizer = refreshEqualizer();
-    	}
-    	
-    	// All done
-    	return sEqualizer;
+        synchronized (sPlayers) {
+            // Not set, try a refresh
+            if (null == sEqualizer) {
+                sEqualizer = refreshEqualizer();
+            }
+
+            // All done
+            return sEqualizer;
+        }
+    }
+
+    /**
+     * Get a copy of the bands; the first item is the pre-amplification
+     */
+    public static float[] getBands() {
+        synchronized (sPlayers) {
+            getEqualizer();
+            return sBands.clone();
+        }
+    }
+
+    /**
+     * Replace all the bands; the first item is the pre-amplification
+     */
+    public static void setBands(float[] bands) {
+        synchronized (sPlayers) {
+            MediaPlayer.Equalizer equalizer = getEqualizer();
+            for (int i = 0; i < bands.length && i < sBands.length; i++) {
+                sBands[i] = bands[i];
+            }
+            equalizer.setPreAmp(sBands[0]);
+            for (int i = 0; i < sBands.length - 1; ++i) {
+                equalizer.setAmp(i, sBands[i + 1]);
+            }
+        }
+        requestApply();
+        requestPersist();
+    }
+
+    /**
+     * Get the pre-amplification
+     */
+    public static float getPreAmp() {
+        synchronized (sPlayers) {
+            return getEqualizer().getPreAmp();
+        }
+    }
+
+    /**
+     * Set the pre-amplification
+     */
+    public static void setPreAmp(float preAmp) {
+        synchronized (sPlayers) {
+            getEqualizer().setPreAmp(preAmp);
+            sBands[0] = preAmp;
+        }
+        requestApply();
+        requestPersist();
+    }
+
+    /**
+     * Get the amplification of a band
+     */
+    public static float getAmp(int index) {
+        synchronized (sPlayers) {
+            return getEqualizer().getAmp(index);
+        }
+    }
+
+    /**
+     * Set the amplification of a band
+     */
+    public static void setAmp(int index, float amp) {
+        synchronized (sPlayers) {
+            if (getEqualizer().setAmp(index, amp)) {
+                sBands[index + 1] = amp;
+            }
+        }
+        requestApply();
+        requestPersist();
     }
-    
+
     /**
-     * Get the settings
+     * Returns true if the equalizer is enabled
+     */
+    public static boolean isEnabled() {
+        synchronized (sPlayers) {
+            getEqualizer();
+            return sEnabled;
+        }
+    }
+
+    /**
+     * Enable or disable the equalizer
+     */
+    public static void setEnabled(boolean enabled) {
+        synchronized (sPlayers) {
+            getEqualizer();
+            sEnabled = enabled;
+        }
+        requestApply();
+        requestPersist();
+    }
+
+    /**
+     * Store the selected preset
+     */
+    public static void setPreset(int preset) {
+        synchronized (sPlayers) {
+            getEqualizer();
+            sPreset = preset;
+        }
+        requestPersist();
+    }
+
+    /**
+     * Load the state from the preferences; called once
      */
     public static MediaPlayer.Equalizer refreshEqualizer() {
         // Get the bands
         float[] bands = PreferenceUtils.getFloatArray(Constants.Keys.SETTINGS_EQUALIZER_VALUES);
-        
+
         // Get the band count
         final int bandCount = MediaPlayer.Equalizer.getBandCount();
 
@@ -74,22 +355,24 @@ public class EqualizerUtil {
             for (int i = 0; i <= bandCount; i++) {
             	bands[i] = 0;
             }
-            
-            // Store the default
-            PreferenceUtils.putFloatArray(PreferenceUtils.edit(), Constants.Keys.SETTINGS_EQUALIZER_VALUES, bands);
         }
-        
+
         // Prepare the equalizer
         final MediaPlayer.Equalizer equalizer = MediaPlayer.Equalizer.create();
-        
+
         // Set the pre-amp
         equalizer.setPreAmp(bands[0]);
-        
+
         // Set the amplification
         for (int i = 0; i < bandCount; ++i) {
             equalizer.setAmp(i, bands[i + 1]);
         }
-        
+
+        // Store the state
+        sBands = bands;
+        sEnabled = PreferenceUtils.getBoolean(Constants.Keys.SETTINGS_EQUALIZER_ENABLED, Constants.Defaults.SETTINGS_EQUALIZER_ENABLED);
+        sPreset = PreferenceUtils.getInt(Constants.Keys.SETTINGS_EQUALIZER_PRESET, Constants.Defaults.SETTINGS_EQUALIZER_PRESET);
+
         // All done
         return equalizer;
     }
@@ -0,0 +1,270 @@
+/**
+ * Copyright 2016 Mark Jivko https://markjivko.com
+ *
+ * Licensed under the GNU General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://gnu.org/licenses/gpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Redistributions of files must retain the above copyright notice.
+ */
+package com.fairplayer;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.LruCache;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Loads small covers for ElementSmallCover on a few worker threads. The
+ * latest visible request goes first, then prefetched keys in the order
+ * they were asked for; a key is only loaded once at a time, and requests
+ * of views rebound to another key are dropped before they start.
+ */
+final class FpCoverLoader {
+
+    /**
+     * Number of worker threads
+     */
+    private static final int THREADS = 3;
+    /**
+     * Maximum number of queued prefetches; the oldest are dropped first
+     */
+    private static final int MAX_PREFETCH = 48;
+
+    /**
+     * A cover to load, with the views waiting for it
+     */
+    private static class Request {
+        final FpCoverStore.CoverKey key;
+        final ArrayList<ElementSmallCover> views = new ArrayList<ElementSmallCover>(1);
+        /**
+         * True once a worker took the request
+         */
+        boolean started;
+
+        Request(FpCoverStore.CoverKey key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * The application context
+     */
+    private final Context mContext;
+    /**
+     * The cache receiving the loaded covers
+     */
+    private final LruCache<FpCoverStore.CoverKey, Bitmap> mCache;
+    /**
+     * The disk cover cache
+     */
+    private final FpCoverStore mStore;
+    /**
+     * Posts the loaded covers to the views
+     */
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+    /**
+     * Queued and running requests, by key
+     */
+    private final HashMap<FpCoverStore.CoverKey, Request> mRequests = new HashMap<FpCoverStore.CoverKey, Request>();
+    /**
+     * The request of each waiting view
+     */
+    private final IdentityHashMap<ElementSmallCover, Request> mViews = new IdentityHashMap<ElementSmallCover, Request>();
+    /**
+     * Requests of visible views, latest first
+     */
+    private final ArrayDeque<Request> mVisible = new ArrayDeque<Request>();
+    /**
+     * Prefetch requests, oldest first
+     */
+    private final ArrayDeque<Request> mPrefetch = new ArrayDeque<Request>();
+
+    FpCoverLoader(Context context, LruCache<FpCoverStore.CoverKey, Bitmap> cache) {
+        mContext = context.getApplicationContext();
+        mCache = cache;
+        mStore = new FpCoverStore(mContext);
+
+        for (int i = 0; i != THREADS; ++i) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    work();
+                }
+            }, FpCoverLoader.class.getSimpleName() + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Loads the cover for the view, ahead of any other request; the view
+     * is called back on the UI thread. Replaces the previous request of
+     * the view
+     */
+    public synchronized void load(FpCoverStore.CoverKey key, ElementSmallCover view) {
+        detach(view);
+
+        Request request = mRequests.get(key);
+        if (request == null) {
+            request = new Request(key);
+            mRequests.put(key, request);
+        } else if (!request.started) {
+            // Move it ahead; a prefetch becomes visible
+            mVisible.remove(request);
+            mPrefetch.remove(request);
+        }
+        if (!request.started) {
+            mVisible.addFirst(request);
+        }
+
+        request.views.add(view);
+        mViews.put(view, request);
+        notify();
+    }
+
+    /**
+     * Loads the cover into the cache once the visible ones are loaded
+     */
+    public synchronized void prefetch(FpCoverStore.CoverKey key) {
+        if (mRequests.containsKey(key)) {
+            return;
+        }
+
+        Request request = new Request(key);
+        mRequests.put(key, request);
+        mPrefetch.addLast(request);
+
+        // The list moved past the oldest ones
+        if (mPrefetch.size() > MAX_PREFETCH) {
+            mRequests.remove(mPrefetch.pollFirst().key);
+        }
+        notify();
+    }
+
+    /**
+     * Drops the pending request of the view, if any
+     */
+    public synchronized void cancel(ElementSmallCover view) {
+        detach(view);
+    }
+
+    /**
+     * Removes the view from its request, dropping the request if no other
+     * view waits for it and it has not started yet
+     */
+    private void detach(ElementSmallCover view) {
+        Request request = mViews.remove(view);
+        if (request == null) {
+            return;
+        }
+
+        request.views.remove(view);
+        if (request.views.isEmpty() && !request.started) {
+            mVisible.remove(request);
+            mRequests.remove(request.key);
+        }
+    }
+
+    /**
+     * Takes the next request, waiting for one
+     */
+    private synchronized Request take() throws InterruptedException {
+        while (true) {
+            Request request = mVisible.pollFirst();
+            if (request == null) {
+                request = mPrefetch.pollFirst();
+            }
+            if (request != null) {
+                request.started = true;
+                return request;
+            }
+            wait();
+        }
+    }
+
+    /**
+     * Runs on each worker thread
+     */
+    private void work() {
+        while (true) {
+            final Request request;
+            try {
+                request = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            // Cached before the request is done, so it is not loaded twice
+            final Bitmap bitmap = loadCover(request.key);
+            mCache.put(request.key, bitmap);
+
+            final ElementSmallCover[] views;
+            synchronized (this) {
+                mRequests.remove(request.key);
+                views = request.views.toArray(new ElementSmallCover[request.views.size()]);
+                for (ElementSmallCover view : views) {
+                    mViews.remove(view);
+                }
+            }
+
+            if (views.length != 0) {
+                mUiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (ElementSmallCover view : views) {
+                            view.onCoverLoaded(request.key);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Returns the cover for the key, the default cover if it has none
+     */
+    private Bitmap loadCover(FpCoverStore.CoverKey key) {
+        Bitmap bitmap = mCache.get(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
+
+        if (key.mediaType == FpUtilsMedia.TYPE_ALBUM && FpCoverStore.mCoverLoadMode != 0) {
+            // Stored on disk: no need to look up a song of the album
+            bitmap = mStore.getStoredCover(key);
+            if (bitmap != null) {
+                return bitmap;
+            }
+
+            FpTrack song = FpUtilsMedia.getSongByTypeId(mContext.getContentResolver(), key.mediaType, key.mediaId);
+            if (null != song) {
+                bitmap = song.getSmallCover(mContext);
+                if (null != bitmap) {
+                    return bitmap;
+                }
+            }
+        }
+
+        // Item has no cover: return a failback
+        return FpCoverBitmap.generateDefaultCover(mContext, FpCoverStore.SIZE_SMALL, FpCoverStore.SIZE_SMALL);
+    }
+}
+
+/*EOF*/
@@ -0,0 +1,560 @@
+/**
+ * Copyright 2016 Mark Jivko https://markjivko.com
+ *
+ * Licensed under the GNU General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://gnu.org/licenses/gpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Redistributions of files must retain the above copyright notice.
+ */
+package com.fairplayer;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Stores blobs by key in append-only pack files. Each pack file is a
+ * segment of records (key, length, data); an in-memory table maps each key
+ * to the segment and offset of its latest record, so a read is a single
+ * positioned read. Writes are queued and appended on a background thread.
+ * When full, the least recently read segment is dropped as a whole.
+ */
+final class FpCoverPack implements Handler.Callback {
+
+    /**
+     * Maximum number of segments on disk
+     */
+    private static final int MAX_SEGMENTS = 8;
+    /**
+     * Size of a record header: the key and the data length
+     */
+    private static final int HEADER_SIZE = 12;
+    /**
+     * Segments are dropped this long after they were started, so covers
+     * changed on disk are eventually picked up
+     */
+    private static final long SEGMENT_TTL = 8 * 86400 * 1000L;
+    /**
+     * Pack file extension
+     */
+    private static final String EXTENSION = ".pack";
+
+    /**
+     * A pack file
+     */
+    private static class Segment {
+        /**
+         * Index in mSegments
+         */
+        int slot;
+        /**
+         * Creation time in milliseconds; also names the file
+         */
+        long serial;
+        RandomAccessFile file;
+        FileChannel channel;
+        /**
+         * Bytes written or reserved so far
+         */
+        long size;
+        /**
+         * Value of mClock on the last read
+         */
+        long lastUse;
+    }
+
+    /**
+     * The directory holding the pack files
+     */
+    private final File mDir;
+    /**
+     * Preferred size of a segment in bytes
+     */
+    private final long mSegmentSize;
+    /**
+     * Open segments, by slot
+     */
+    private final Segment[] mSegments = new Segment[MAX_SEGMENTS];
+    /**
+     * The segment receiving new records
+     */
+    private Segment mActive;
+    /**
+     * Serial of the newest segment
+     */
+    private long mLastSerial;
+    /**
+     * Incremented on each read, to order segments by use
+     */
+    private long mClock;
+    /**
+     * True once the existing pack files were indexed
+     */
+    private boolean mLoaded;
+    /**
+     * Index keys, by table slot
+     */
+    private long[] mKeys;
+    /**
+     * Segment slot (high 32 bits) and record offset (low 32 bits) for each
+     * table slot, -1 for an empty table slot
+     */
+    private long[] mLocations;
+    /**
+     * Data length for each table slot
+     */
+    private int[] mLengths;
+    /**
+     * Number of keys in the index
+     */
+    private int mCount;
+    /**
+     * Records waiting to be written, visible to get()
+     */
+    private final LinkedHashMap<Long, byte[]> mPending = new LinkedHashMap<Long, byte[]>();
+    /**
+     * Handler of the writer thread
+     */
+    private final Handler mHandler;
+
+    /**
+     * Creates a pack store; the directory is read on first use
+     *
+     * @param dir The directory to keep the pack files in
+     * @param maxSize The maximal amount of disk space to use in bytes
+     */
+    FpCoverPack(File dir, long maxSize) {
+        mDir = dir;
+        mSegmentSize = maxSize / MAX_SEGMENTS;
+        clearIndex(1024);
+
+        HandlerThread handlerThread = new HandlerThread(FpCoverPack.class.getSimpleName(), Process.THREAD_PRIORITY_LOWEST);
+        handlerThread.start();
+        mHandler = new Handler(handlerThread.getLooper(), this);
+    }
+
+    /**
+     * Returns the data stored under the key, null if there is none.
+     * Should only be used on a background thread
+     */
+    public byte[] get(long key) {
+        Segment segment;
+        long position;
+        int length;
+        synchronized (this) {
+            byte[] pending = mPending.get(key);
+            if (pending != null) {
+                return pending;
+            }
+
+            load();
+            int slot = slot(key);
+            if (mLocations[slot] == -1) {
+                return null;
+            }
+
+            segment = mSegments[(int) (mLocations[slot] >>> 32)];
+            if (isExpired(segment)) {
+                evict(segment);
+                return null;
+            }
+
+            segment.lastUse = ++mClock;
+            position = (mLocations[slot] & 0xffffffffL) + HEADER_SIZE;
+            length = mLengths[slot];
+        }
+
+        // A single positioned read, outside of the lock
+        byte[] data = new byte[length];
+        try {
+            readFully(segment.channel, ByteBuffer.wrap(data), position);
+        } catch (IOException e) {
+            // The segment was evicted meanwhile
+            return null;
+        }
+        return data;
+    }
+
+    /**
+     * Returns true if data is stored, or queued, under the key
+     */
+    public synchronized boolean contains(long key) {
+        if (mPending.containsKey(key)) {
+            return true;
+        }
+
+        load();
+        int slot = slot(key);
+        return mLocations[slot] != -1 && !isExpired(mSegments[(int) (mLocations[slot] >>> 32)]);
+    }
+
+    /**
+     * Queues the data to be stored under the key; returns immediately
+     */
+    public void put(long key, byte[] data) {
+        synchronized (this) {
+            mPending.put(key, data);
+        }
+        mHandler.sendEmptyMessage(MSG_WRITE);
+    }
+
+    /**
+     * Deletes all the stored data
+     */
+    public synchronized void evictAll() {
+        mPending.clear();
+        load();
+        for (Segment segment : mSegments) {
+            if (segment != null) {
+                close(segment);
+                mSegments[segment.slot] = null;
+            }
+        }
+        mActive = null;
+        clearIndex(1024);
+
+        // Also drop any file we could not open
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private static final int MSG_WRITE = 1;
+
+    @Override
+    public boolean handleMessage(Message message) {
+        switch (message.what) {
+            case MSG_WRITE: {
+                while (true) {
+                    long key;
+                    byte[] data;
+                    synchronized (this) {
+                        Iterator<Map.Entry<Long, byte[]>> iterator = mPending.entrySet().iterator();
+                        if (!iterator.hasNext()) {
+                            break;
+                        }
+                        Map.Entry<Long, byte[]> entry = iterator.next();
+                        key = entry.getKey();
+                        data = entry.getValue();
+                    }
+                    write(key, data);
+                }
+                break;
+            }
+            default: {
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Appends a pending record to the active segment and indexes it
+     */
+    private void write(long key, byte[] data) {
+        Segment segment;
+        long position;
+        synchronized (this) {
+            load();
+            segment = reserve(HEADER_SIZE + data.length);
+            if (segment == null) {
+                mPending.remove(key);
+                return;
+            }
+            position = segment.size;
+            segment.size += HEADER_SIZE + data.length;
+        }
+
+        // Write outside of the lock, readers only see the record once indexed
+        boolean written = true;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + data.length);
+        buffer.putLong(key).putInt(data.length).put(data);
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                segment.channel.write(buffer, position + buffer.position());
+            }
+        } catch (IOException e) {
+            Log.d(Constants.LOG_TAG, "Failed to write cover: " + e);
+            written = false;
+        }
+
+        synchronized (this) {
+            if (mPending.get(key) == data) {
+                mPending.remove(key);
+            }
+            if (written && mSegments[segment.slot] == segment) {
+                insert(key, segment.slot, position, data.length);
+            }
+        }
+    }
+
+    /**
+     * Returns the segment to append the given number of bytes to, starting
+     * a new segment if the active one is full; null on failure
+     */
+    private Segment reserve(int size) {
+        if (mActive != null && (mActive.size == 0 || mActive.size + size <= mSegmentSize)) {
+            return mActive;
+        }
+
+        // Take a free slot, or the one of the least recently read segment
+        int slot = -1;
+        for (int i = 0; i != MAX_SEGMENTS; ++i) {
+            if (mSegments[i] == null) {
+                slot = i;
+                break;
+            }
+        }
+        if (slot == -1) {
+            Segment oldest = null;
+            for (Segment segment : mSegments) {
+                if (segment != mActive && (oldest == null || segment.lastUse < oldest.lastUse)) {
+                    oldest = segment;
+                }
+            }
+            evict(oldest);
+            slot = oldest.slot;
+        }
+
+        mLastSerial = Math.max(System.currentTimeMillis(), mLastSerial + 1);
+        try {
+            mActive = open(slot, mLastSerial);
+        } catch (IOException e) {
+            Log.d(Constants.LOG_TAG, "Failed to create cover pack: " + e);
+            mActive = null;
+        }
+        return mActive;
+    }
+
+    /**
+     * Indexes the existing pack files, once
+     */
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        mDir.mkdirs();
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        // Oldest first, so newer records of the same key win
+        long[] serials = new long[files.length];
+        int count = 0;
+        for (File file : files) {
+            String name = file.getName();
+            try {
+                serials[count] = Long.parseLong(name.substring(0, name.length() - EXTENSION.length()));
+                if (name.endsWith(EXTENSION)) {
+                    ++count;
+                    continue;
+                }
+            } catch (RuntimeException e) {
+                // Not a pack file
+            }
+            file.delete();
+        }
+        Arrays.sort(serials, 0, count);
+
+        long now = System.currentTimeMillis();
+        int slot = 0;
+        for (int i = 0; i != count; ++i) {
+            File file = new File(mDir, serials[i] + EXTENSION);
+            if (count - i > MAX_SEGMENTS || now > serials[i] + SEGMENT_TTL) {
+                file.delete();
+                continue;
+            }
+
+            try {
+                Segment segment = open(slot, serials[i]);
+                scan(segment);
+                segment.lastUse = ++mClock;
+                mActive = segment;
+                mLastSerial = serials[i];
+                ++slot;
+            } catch (IOException e) {
+                Log.d(Constants.LOG_TAG, "Dropping cover pack " + file + ": " + e);
+                if (mSegments[slot] != null) {
+                    evict(mSegments[slot]);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens or creates the pack file with the given serial in a slot
+     */
+    private Segment open(int slot, long serial) throws IOException {
+        Segment segment = new Segment();
+        segment.slot = slot;
+        segment.serial = serial;
+        segment.file = new RandomAccessFile(new File(mDir, serial + EXTENSION), "rw");
+        segment.channel = segment.file.getChannel();
+        segment.size = segment.channel.size();
+        segment.lastUse = mClock;
+        mSegments[slot] = segment;
+        return segment;
+    }
+
+    /**
+     * Indexes the records of a segment, cutting off a partly written tail
+     */
+    private void scan(Segment segment) throws IOException {
+        FileChannel channel = segment.channel;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long end = channel.size();
+        long position = 0;
+        while (position + HEADER_SIZE <= end) {
+            header.clear();
+            readFully(channel, header, position);
+            header.flip();
+            long key = header.getLong();
+            int length = header.getInt();
+            if (length < 0 || position + HEADER_SIZE + length > end) {
+                break;
+            }
+            insert(key, segment.slot, position, length);
+            position += HEADER_SIZE + length;
+        }
+
+        if (position != end) {
+            channel.truncate(position);
+        }
+        segment.size = position;
+    }
+
+    /**
+     * Drops a segment and all the keys pointing to it
+     */
+    private void evict(Segment segment) {
+        close(segment);
+        new File(mDir, segment.serial + EXTENSION).delete();
+        mSegments[segment.slot] = null;
+        if (mActive == segment) {
+            mActive = null;
+        }
+
+        // Rebuild the index without the segment
+        long[] keys = mKeys;
+        long[] locations = mLocations;
+        int[] lengths = mLengths;
+        clearIndex(keys.length);
+        for (int i = 0; i != keys.length; ++i) {
+            if (locations[i] != -1 && (int) (locations[i] >>> 32) != segment.slot) {
+                insert(keys[i], (int) (locations[i] >>> 32), locations[i] & 0xffffffffL, lengths[i]);
+            }
+        }
+    }
+
+    /**
+     * Closes the pack file of a segment
+     */
+    private static void close(Segment segment) {
+        try {
+            segment.file.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+
+    /**
+     * Returns true once a segment outlived SEGMENT_TTL
+     */
+    private static boolean isExpired(Segment segment) {
+        return System.currentTimeMillis() > segment.serial + SEGMENT_TTL;
+    }
+
+    /**
+     * Fills the buffer from the given file position
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * Empties the index, with the given capacity (a power of two)
+     */
+    private void clearIndex(int capacity) {
+        mKeys = new long[capacity];
+        mLocations = new long[capacity];
+        mLengths = new int[capacity];
+        mCount = 0;
+        Arrays.fill(mLocations, -1);
+    }
+
+    /**
+     * Points the key to a record, replacing the previous one
+     */
+    private void insert(long key, int segmentSlot, long position, int length) {
+        // Keep the table at most half full
+        if ((mCount + 1) * 2 > mKeys.length) {
+            long[] keys = mKeys;
+            long[] locations = mLocations;
+            int[] lengths = mLengths;
+            clearIndex(keys.length * 2);
+            for (int i = 0; i != keys.length; ++i) {
+                if (locations[i] != -1) {
+                    insert(keys[i], (int) (locations[i] >>> 32), locations[i] & 0xffffffffL, lengths[i]);
+                }
+            }
+        }
+
+        int slot = slot(key);
+        if (mLocations[slot] == -1) {
+            ++mCount;
+        }
+        mKeys[slot] = key;
+        mLocations[slot] = ((long) segmentSlot << 32) | position;
+        mLengths[slot] = length;
+    }
+
+    /**
+     * Returns the table slot of the key, or the empty slot it goes in
+     */
+    private int slot(long key) {
+        int mask = mKeys.length - 1;
+        int hash = (int) (key ^ (key >>> 32)) * 0x9e3779b9;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (mLocations[slot] != -1 && mKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+}
+
+/*EOF*/
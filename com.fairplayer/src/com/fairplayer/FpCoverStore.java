@@ -18,11 +18,7 @@
 package com.fairplayer;
 
 import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.Context;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteOpenHelper;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
@@ -30,12 +26,16 @@ import android.net.Uri;
 import android.os.Environment;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.Random;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.regex.Pattern;
 
 public class FpCoverStore {
@@ -50,6 +50,10 @@ public class FpCoverStore {
      * Returned size of large (cover view) album covers
      */
     public final static int SIZE_LARGE = 600;
+    /**
+     * Sizes stored from a single decode of a cover, largest first
+     */
+    private final static int[] SIZES = {SIZE_LARGE, SIZE_SMALL};
     /**
      * Use all cover providers to load cover art
      */
@@ -104,15 +108,45 @@ public class FpCoverStore {
         CoverKey key = new FpCoverStore.CoverKey(FpUtilsMedia.TYPE_ALBUM, song.albumId, size);
         Bitmap cover = getStoredCover(key);
         if (cover == null) {
-            cover = sBitmapDiskCache.createBitmap(song, size * size);
-            if (cover != null) {
-                storeCover(key, cover);
-                cover = getStoredCover(key); // return lossy version to avoid random quality changes
+            // Decode the source once, at the largest size, and store every size from it
+            Bitmap source = sBitmapDiskCache.createBitmap(song, (long) SIZES[0] * SIZES[0]);
+            if (source != null) {
+                for (int levelSize : SIZES) {
+                    Bitmap level = scaleCover(source, levelSize);
+                    storeCover(new FpCoverStore.CoverKey(FpUtilsMedia.TYPE_ALBUM, song.albumId, levelSize), level);
+                    if (levelSize == size) {
+                        cover = level;
+                    }
+                }
+
+                // Not one of the stored sizes
+                if (cover == null) {
+                    cover = scaleCover(source, size);
+                    storeCover(key, cover);
+                }
             }
         }
         return cover;
     }
 
+    /**
+     * Returns the bitmap scaled down to at most size * size pixels,
+     * keeping its aspect ratio; the bitmap itself if it is small enough
+     */
+    private static Bitmap scaleCover(Bitmap bitmap, int size) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        long pixels = (long) width * height;
+        if (pixels <= (long) size * size) {
+            return bitmap;
+        }
+
+        double factor = Math.sqrt((double) size * size / pixels);
+        int scaledWidth = Math.max(1, (int) Math.round(width * factor));
+        int scaledHeight = Math.max(1, (int) Math.round(height * factor));
+        return Bitmap.createScaledBitmap(bitmap, scaledWidth, scaledHeight, true);
+    }
+
     /**
      * Returns the on-disk cached version of the cover.
      * Should only be used on a background thread
@@ -121,7 +155,7 @@ public class FpCoverStore {
      *
      * @return bitmap or null on cache miss
      */
-    private Bitmap getStoredCover(CoverKey key) {
+    public Bitmap getStoredCover(CoverKey key) {
         return sBitmapDiskCache.get(key);
     }
 
@@ -145,6 +179,27 @@ public class FpCoverStore {
         }
     }
 
+    /**
+     * Returns a 64 bit hash of the pixels of a bitmap (FNV-1a), used to
+     * store identical covers only once
+     */
+    public static long getContentHash(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] row = new int[width];
+
+        long hash = 0xcbf29ce484222325L;
+        hash = (hash ^ width) * 0x100000001b3L;
+        hash = (hash ^ height) * 0x100000001b3L;
+        for (int y = 0; y != height; ++y) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            for (int pixel : row) {
+                hash = (hash ^ pixel) * 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
     /**
      * Object used as cache key. Objects with the same
      * media type, id and size are considered to be equal
@@ -172,9 +227,19 @@ public class FpCoverStore {
             return false;
         }
 
+        /**
+         * Returns the 64 bit key of the cover source: the media id in the
+         * high 48 bits, then 4 bits of media type and 12 bits of size.
+         * Unique for all valid ids, types and sizes
+         */
+        public long getSourceKey() {
+            return (this.mediaId << 16) | ((this.mediaType & 0xf) << 12) | (this.coverSize & 0xfff);
+        }
+
         @Override
         public int hashCode() {
-            return (int) this.mediaId + this.mediaType * (int) 1e4 + this.coverSize * (int) 1e5;
+            long key = getSourceKey();
+            return (int) (key ^ (key >>> 32));
         }
 
         @Override
@@ -184,36 +249,89 @@ public class FpCoverStore {
 
     }
 
-    private static class BitmapDiskCache extends SQLiteOpenHelper {
+    /**
+     * The best cover candidate of a directory, as of its modification time
+     */
+    private static class DirectoryEntry {
+
+        long mtime;
+        /**
+         * Path of the cover file, null if the directory has none
+         */
+        String cover;
+
+        /**
+         * Serializes the entry, along with the directory path to tell apart
+         * paths with the same hash
+         */
+        byte[] toBytes(String path) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(out);
+            try {
+                data.writeUTF(path);
+                data.writeLong(mtime);
+                data.writeUTF(cover == null ? "" : cover);
+            } catch (IOException e) {
+                // Not thrown by a ByteArrayOutputStream
+            }
+            return out.toByteArray();
+        }
+
+        /**
+         * Returns the serialized entry of the directory, null if the bytes
+         * are missing or belong to another directory
+         */
+        static DirectoryEntry fromBytes(String path, byte[] bytes) {
+            if (bytes == null) {
+                return null;
+            }
+
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+            try {
+                if (!path.equals(data.readUTF())) {
+                    return null;
+                }
+                DirectoryEntry entry = new DirectoryEntry();
+                entry.mtime = data.readLong();
+                String cover = data.readUTF();
+                entry.cover = cover.length() == 0 ? null : cover;
+                return entry;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+
+    private static class BitmapDiskCache {
 
         /**
          * The Context to use
          */
         private final Context mContext;
         /**
-         * Maximal cache size to use in bytes
+         * Pack files holding the compressed covers, by content hash
          */
-        private final long mCacheSize;
+        private final FpCoverPack mPack;
         /**
-         * SQLite table to use
+         * Pack files holding the content hash of each cover source
          */
-        private final static String TABLE_NAME = "fp_database_cover";
+        private final FpCoverPack mSources;
         /**
-         * Priority-ordered list of possible cover names
+         * Pack files holding the best cover candidate of each directory
          */
-        private final static Pattern[] COVER_MATCHES = {Pattern.compile("(?i).+/(COVER|ALBUM)\\.(JPE?G|PNG)$"), Pattern.compile("(?i).+/(CD|FRONT|ARTWORK)\\.(JPE?G|PNG)$"), Pattern.compile("(?i).+\\.(JPE?G|PNG)$")};
+        private final FpCoverPack mDirectoryPack;
         /**
-         * Projection of all columns in the database
+         * Directories looked up so far, by path
          */
-        private final static String[] FULL_PROJECTION = {"id", "size", "expires", "blob"};
+        private final HashMap<String, DirectoryEntry> mDirectories = new HashMap<String, DirectoryEntry>();
         /**
-         * Projection of metadata-only columns
+         * Name of the former SQLite cover database
          */
-        private final static String[] META_PROJECTION = {"id", "size", "expires"};
+        private final static String LEGACY_DATABASE = "fp_database_cover.db";
         /**
-         * Restrict lifetime of cached objects to, at most, OBJECT_TTL
+         * Priority-ordered list of possible cover names
          */
-        private final static int OBJECT_TTL = 86400 * 8;
+        private final static Pattern[] COVER_MATCHES = {Pattern.compile("(?i).+/(COVER|ALBUM)\\.(JPE?G|PNG)$"), Pattern.compile("(?i).+/(CD|FRONT|ARTWORK)\\.(JPE?G|PNG)$"), Pattern.compile("(?i).+\\.(JPE?G|PNG)$")};
 
         /**
          * Creates a new BitmapDiskCache instance
@@ -222,144 +340,119 @@ public class FpCoverStore {
          * @param cacheSize The maximal amount of disk space to use in bytes
          */
         public BitmapDiskCache(Context context, long cacheSize) {
-            super(context, TABLE_NAME + ".db", null, 1);
-            mCacheSize = cacheSize;
             mContext = context;
-        }
+            mPack = new FpCoverPack(new File(context.getCacheDir(), "fp_cover_data"), cacheSize);
+            mSources = new FpCoverPack(new File(context.getCacheDir(), "fp_cover_keys"), 1024 * 1024);
+            mDirectoryPack = new FpCoverPack(new File(context.getCacheDir(), "fp_cover_dirs"), 1024 * 1024);
 
-        /**
-         * Called by SQLiteOpenHelper to create the database schema
-         */
-        @Override
-        public void onCreate(SQLiteDatabase dbh) {
-            try {
-                dbh.execSQL("CREATE TABLE " + TABLE_NAME + " (id INTEGER, expires INTEGER, size INTEGER, blob BLOB);");
-            } catch (Exception excCreate) {}
-            try {
-                dbh.execSQL("CREATE UNIQUE INDEX idx ON " + TABLE_NAME + " (id);");
-            } catch (Exception excIdx) {}
+            // Covers used to be kept in SQLite
+            if (context.getDatabasePath(LEGACY_DATABASE).exists()) {
+                context.deleteDatabase(LEGACY_DATABASE);
+            }
         }
 
         /**
-         * Called by SqLiteOpenHelper if the database needs an upgrade
+         * Deletes all cached elements from the on-disk cache
          */
-        @Override
-        public void onUpgrade(SQLiteDatabase dbh, int oldVersion, int newVersion) {
-            // first db -> nothing to upgrade
+        public void evictAll() {
+            synchronized (mDirectories) {
+                mDirectories.clear();
+            }
+            mDirectoryPack.evictAll();
+            mSources.evictAll();
+            mPack.evictAll();
         }
 
         /**
-         * Trims the on disk cache to given size
-         *
-         * @param maxCacheSize Trim cache to this many bytes
+         * Returns the path of the best cover candidate of the directory,
+         * null if it has none. The directory is only scanned again once
+         * its modification time changes
          */
-        private void trim(long maxCacheSize) {
-            SQLiteDatabase dbh = getWritableDatabase();
-            long availableSpace = maxCacheSize - getUsedSpace();
-
-            if (maxCacheSize == 0) {
-                // Just drop the whole database (probably a call from evictAll)
-                dbh.delete(TABLE_NAME, "1", null);
-            } else {
-                if (availableSpace < 0) {
-                    // Try to evict all expired entries first
-                    int affected = dbh.delete(TABLE_NAME, "expires < ?", new String[] {"" + getUnixTime()});
-                    if (affected > 0) {
-                        availableSpace = maxCacheSize - getUsedSpace();
-                    }
-
-                    if (availableSpace < 0) {
-                        // still not enough space: purge by expire date (this kills random rows as expire times are random)
-                        Cursor cursor = dbh.query(TABLE_NAME, META_PROJECTION, null, null, null, null, "expires ASC");
-                        if (cursor != null) {
-                            while (cursor.moveToNext() && availableSpace < 0) {
-                                int id = cursor.getInt(0);
-                                int size = cursor.getInt(1);
-                                dbh.delete(TABLE_NAME, "id=?", new String[] {"" + id});
-                                availableSpace += size;
-                            }
-                            cursor.close();
-                        }
-                    }
+        private String findDirectoryCover(File directory) {
+            String path = directory.getPath();
+            long mtime = directory.lastModified();
+            synchronized (mDirectories) {
+                DirectoryEntry entry = mDirectories.get(path);
+                if (entry != null && entry.mtime == mtime) {
+                    return entry.cover;
                 }
             }
-        }
 
-        /**
-         * Deletes all cached elements from the on-disk cache
-         */
-        public void evictAll() {
-            // purge all cached entries
-            trim(0);
-            // and release the dbh
-            getWritableDatabase().close();
-        }
+            // Not looked up since started: try the persisted entry
+            long key = getPathHash(path);
+            DirectoryEntry entry = DirectoryEntry.fromBytes(path, mDirectoryPack.get(key));
+            if (entry == null || entry.mtime != mtime) {
+                entry = new DirectoryEntry();
+                entry.mtime = mtime;
+                entry.cover = scanDirectory(directory);
+                mDirectoryPack.put(key, entry.toBytes(path));
+            }
 
-        /**
-         * Checks if given stamp is considered to be expired
-         *
-         * @param stamp The timestamp to check
-         *
-         * @return boolean true if stamp is expired
-         */
-        private boolean isExpired(long stamp) {
-            return (getUnixTime() > stamp);
+            synchronized (mDirectories) {
+                mDirectories.put(path, entry);
+            }
+            return entry.cover;
         }
 
         /**
-         * Returns the current unix timestamp
-         *
-         * @return long unix seconds since epoc
+         * Returns the path of the best matching cover file in the
+         * directory, null if there is none
          */
-        private long getUnixTime() {
-            return System.currentTimeMillis() / 1000L;
+        private static String scanDirectory(File directory) {
+            File[] entries = directory.listFiles();
+            if (entries == null) {
+                return null;
+            }
+
+            String bestMatchPath = null;                 // The best cover-path we found
+            int bestMatchIndex = COVER_MATCHES.length; // The best cover-index/priority found
+            int loopCount = 0;                    // Directory items loop counter
+            for (final File entry : entries) {
+                for (int i = 0; i < bestMatchIndex; i++) {
+                    // We are checking each file entry to see if it matches a known
+                    // cover pattern. We abort on first hit as the Pattern array is sorted from good->meh
+                    if (COVER_MATCHES[i].matcher(entry.toString()).matches()) {
+                        bestMatchIndex = i;
+                        bestMatchPath = entry.toString();
+                        break;
+                    }
+                }
+                // Stop loop if we found the best match or if we looped 50 times
+                if (loopCount++ > 50 || bestMatchIndex == 0) {
+                    break;
+                }
+            }
+            return bestMatchPath;
         }
 
         /**
-         * Calculates the space used by the sqlite database
-         *
-         * @return long the space used in bytes
+         * Returns a 64 bit hash of a path (FNV-1a)
          */
-        private long getUsedSpace() {
-            long usedSpace = -1;
-            SQLiteDatabase dbh = getWritableDatabase();
-            Cursor cursor = dbh.query(TABLE_NAME, new String[] {"SUM(size)"}, null, null, null, null, null);
-            if (cursor != null) {
-                if (cursor.moveToNext()) {
-                    usedSpace = cursor.getLong(0);
-                }
-                cursor.close();
+        private static long getPathHash(String path) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0, length = path.length(); i != length; ++i) {
+                hash = (hash ^ path.charAt(i)) * 0x100000001b3L;
             }
-            return usedSpace;
+            return hash;
         }
 
         /**
-         * Stores a bitmap in the disk cache, does not update existing objects
+         * Stores a bitmap in the disk cache; the write happens in the
+         * background. Identical bitmaps are stored once
          *
          * @param key The cover key to use
          * @param Bitmap The bitmap to store
          */
         public void put(CoverKey key, Bitmap cover) {
-            SQLiteDatabase dbh = getWritableDatabase();
-
-            // Ensure that there is some space left
-            trim(mCacheSize);
-
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            // We store a lossy version as this image was
-            // created from the original source (and will not be re-compressed)
-            cover.compress(Bitmap.CompressFormat.JPEG, 85, out);
-
-            Random rnd = new Random();
-            long ttl = getUnixTime() + rnd.nextInt(OBJECT_TTL);
-
-            ContentValues values = new ContentValues();
-            values.put("id", key.hashCode());
-            values.put("expires", ttl);
-            values.put("size", out.size());
-            values.put("blob", out.toByteArray());
-
-            dbh.insert(TABLE_NAME, null, values);
+            long hash = getContentHash(cover);
+            if (!mPack.contains(hash)) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                // We store a lossy version as this image was
+                // created from the original source (and will not be re-compressed)
+                cover.compress(Bitmap.CompressFormat.JPEG, 85, out);
+                mPack.put(hash, out.toByteArray());
+            }
+            mSources.put(key.getSourceKey(), ByteBuffer.allocate(8).putLong(hash).array());
         }
 
         /**
@@ -370,28 +463,16 @@ public class FpCoverStore {
          * @return a cached bitmap, null on cache miss
          */
         public Bitmap get(CoverKey key) {
-            Bitmap cover = null;
-
-            SQLiteDatabase dbh = getWritableDatabase(); // may also delete
-            String selection = "id=?";
-            String[] selectionArgs = {"" + key.hashCode()};
-            Cursor cursor = dbh.query(TABLE_NAME, FULL_PROJECTION, selection, selectionArgs, null, null, null);
-            if (cursor != null) {
-                if (cursor.moveToFirst()) {
-                    long expires = cursor.getLong(2);
-                    byte[] blob = cursor.getBlob(3);
-
-                    if (isExpired(expires)) {
-                        dbh.delete(TABLE_NAME, selection, selectionArgs);
-                    } else {
-                        ByteArrayInputStream stream = new ByteArrayInputStream(blob);
-                        cover = BitmapFactory.decodeStream(stream);
-                    }
-                }
-                cursor.close();
+            byte[] source = mSources.get(key.getSourceKey());
+            if (source == null || source.length != 8) {
+                return null;
             }
 
-            return cover;
+            byte[] blob = mPack.get(ByteBuffer.wrap(source).getLong());
+            if (blob == null) {
+                return null;
+            }
+            return BitmapFactory.decodeByteArray(blob, 0, blob.length);
         }
 
         /**
@@ -415,28 +496,12 @@ public class FpCoverStore {
                 if ((FpCoverStore.mCoverLoadMode & FpCoverStore.COVER_MODE_CUSTOM) != 0) {
                     final File baseFile = new File(song.path);  // File object of queried song
                     String bestMatchPath = null;                 // The best cover-path we found
-                    int bestMatchIndex = COVER_MATCHES.length; // The best cover-index/priority found
-                    int loopCount = 0;                    // Directory items loop counter
 
                     // Only start search if the base directory of this file is NOT the public
                     // downloads folder: Picking files from there would lead to a false positive
                     // in most cases
                     if (baseFile.getParentFile().equals(sDownloadsDir) == false) {
-                        for (final File entry : baseFile.getParentFile().listFiles()) {
-                            for (int i = 0; i < bestMatchIndex; i++) {
-                                // We are checking each file entry to see if it matches a known
-                                // cover pattern. We abort on first hit as the Pattern array is sorted from good->meh
-                                if (COVER_MATCHES[i].matcher(entry.toString()).matches()) {
-                                    bestMatchIndex = i;
-                                    bestMatchPath = entry.toString();
-                                    break;
-                                }
-                            }
-                            // Stop loop if we found the best match or if we looped 50 times
-                            if (loopCount++ > 50 || bestMatchIndex == 0) {
-                                break;
-                            }
-                        }
+                        bestMatchPath = findDirectoryCover(baseFile.getParentFile());
                     }
 
                     if (bestMatchPath != null) {
@@ -397,7 +397,8 @@ public final class FpCoverView extends View implements Handler.Callback {
      * the bitmap for it in the background if needed.
      */
     public void setSong(int i, FpTrack song) {
-        if (song == mSongs[i]) {
+        // Songs are views of the timeline, compare their ids
+        if (song == mSongs[i] || (song != null && mSongs[i] != null && song.id == mSongs[i].id)) {
             return;
         }
 
@@ -437,7 +438,7 @@ public final class FpCoverView extends View implements Handler.Callback {
             }
 
             for (int j = 0; j < 3; ++j) {
-                if (newSongs[i] == songs[j]) {
+                if (songs[j] != null && newSongs[i].id == songs[j].id) {
                     newBitmaps[i] = bitmaps[j];
                     break;
                 }
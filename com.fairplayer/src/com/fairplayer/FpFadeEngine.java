@@ -0,0 +1,257 @@
+/**
+ * Copyright 2016 Mark Jivko https://markjivko.com
+ *
+ * Licensed under the GNU General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://gnu.org/licenses/gpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Redistributions of files must retain the above copyright notice.
+ */
+package com.fairplayer;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+
+/**
+ * Drives volume envelopes (fade-in, fade-out, ducking, crossfade) on one or
+ * more FpMediaPlayer objects from a single timer running on its own thread.
+ */
+class FpFadeEngine implements Handler.Callback {
+
+    /**
+     * Linear gain ramp
+     */
+    public static final int CURVE_LINEAR = 0;
+
+    /**
+     * Equal-power (sine/cosine) gain ramp, keeps the perceived loudness
+     * constant during a crossfade
+     */
+    public static final int CURVE_EQUAL_POWER = 1;
+
+    /**
+     * Envelope applied to the fade gain of a player
+     */
+    public static final int CHANNEL_FADE = 0;
+
+    /**
+     * Envelope applied to the ducking gain of a player
+     */
+    public static final int CHANNEL_DUCK = 1;
+
+    /**
+     * Milliseconds between two volume updates; bounds the update rate
+     */
+    private static final int MS_PER_TICK = 40;
+
+    private static final int MSG_TICK = 1;
+
+    /**
+     * A single gain ramp
+     */
+    private static class Envelope {
+        FpMediaPlayer player;
+        int channel;
+        int curve;
+        float from;
+        float to;
+        long start;
+        long duration;
+        Message onDone;
+    }
+
+    /**
+     * Our message handler
+     */
+    private final Handler mHandler;
+
+    /**
+     * Envelopes in progress
+     */
+    private final ArrayList<Envelope> mEnvelopes = new ArrayList<Envelope>(4);
+
+    public FpFadeEngine() {
+        HandlerThread handlerThread = new HandlerThread(FpFadeEngine.class.getSimpleName(), Process.THREAD_PRIORITY_AUDIO);
+        handlerThread.start();
+        mHandler = new Handler(handlerThread.getLooper(), this);
+    }
+
+    /**
+     * Fade the player in from its current fade gain
+     *
+     * @param onDone Optional message to send when the fade completes
+     */
+    public void fadeIn(FpMediaPlayer player, long duration, int curve, Message onDone) {
+        ramp(player, CHANNEL_FADE, 1.0f, duration, curve, onDone);
+    }
+
+    /**
+     * Fade the player out from its current fade gain
+     *
+     * @param onDone Optional message to send when the fade completes
+     */
+    public void fadeOut(FpMediaPlayer player, long duration, int curve, Message onDone) {
+        ramp(player, CHANNEL_FADE, 0.0f, duration, curve, onDone);
+    }
+
+    /**
+     * Ramp the ducking gain of the player towards its ducking target
+     */
+    public void duck(FpMediaPlayer player, boolean isDucking, long duration) {
+        player.setIsDucking(isDucking, false);
+        ramp(player, CHANNEL_DUCK, player.getDuckingTarget(), duration, CURVE_LINEAR, null);
+    }
+
+    /**
+     * Crossfade from one player to another
+     *
+     * @param onDone Optional message to send when the outgoing player is silent
+     */
+    public void crossfade(FpMediaPlayer outgoing, FpMediaPlayer incoming, long duration, Message onDone) {
+        ramp(incoming, CHANNEL_FADE, 1.0f, duration, CURVE_EQUAL_POWER, null);
+        ramp(outgoing, CHANNEL_FADE, 0.0f, duration, CURVE_EQUAL_POWER, onDone);
+    }
+
+    /**
+     * Start a gain ramp on a channel, replacing any ramp already running
+     * on the same player and channel
+     */
+    public void ramp(FpMediaPlayer player, int channel, float to, long duration, int curve, Message onDone) {
+        Envelope envelope = new Envelope();
+        envelope.player = player;
+        envelope.channel = channel;
+        envelope.curve = curve;
+        envelope.from = player.getGain(channel);
+        envelope.to = to;
+        envelope.start = SystemClock.uptimeMillis();
+        envelope.duration = Math.max(0, duration);
+        envelope.onDone = onDone;
+
+        synchronized (mEnvelopes) {
+            remove(player, channel);
+            mEnvelopes.add(envelope);
+        }
+
+        if (!mHandler.hasMessages(MSG_TICK)) {
+            mHandler.sendEmptyMessage(MSG_TICK);
+        }
+    }
+
+    /**
+     * Cancel the fade running on the player, leaving the gain as it is
+     */
+    public void cancel(FpMediaPlayer player) {
+        synchronized (mEnvelopes) {
+            remove(player, CHANNEL_FADE);
+        }
+    }
+
+    /**
+     * Drop all the envelopes and stop the thread; the engine can not be
+     * used afterwards
+     */
+    public void quit() {
+        synchronized (mEnvelopes) {
+            for (Envelope envelope : mEnvelopes) {
+                if (null != envelope.onDone) {
+                    envelope.onDone.recycle();
+                }
+            }
+            mEnvelopes.clear();
+        }
+        mHandler.removeMessages(MSG_TICK);
+        mHandler.getLooper().quit();
+    }
+
+    /**
+     * Returns true if a fade is in progress on the player
+     */
+    public boolean isFading(FpMediaPlayer player) {
+        synchronized (mEnvelopes) {
+            for (Envelope envelope : mEnvelopes) {
+                if (envelope.player == player && envelope.channel == CHANNEL_FADE) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drop the envelope for the player and channel; the caller holds the lock
+     */
+    private void remove(FpMediaPlayer player, int channel) {
+        for (int i = mEnvelopes.size(); --i != -1;) {
+            Envelope envelope = mEnvelopes.get(i);
+            if (envelope.player == player && envelope.channel == channel) {
+                mEnvelopes.remove(i);
+                if (null != envelope.onDone) {
+                    envelope.onDone.recycle();
+                }
+            }
+        }
+    }
+
+    /**
+     * Gain at the given progress (0.0f...1.0f) of the envelope
+     */
+    private static float gainAt(Envelope envelope, float progress) {
+        float shape = progress;
+        if (envelope.curve == CURVE_EQUAL_POWER) {
+            shape = envelope.to >= envelope.from
+                ? (float) Math.sin(progress * Math.PI / 2)
+                : 1.0f - (float) Math.cos(progress * Math.PI / 2);
+        }
+        return envelope.from + (envelope.to - envelope.from) * shape;
+    }
+
+    @Override
+    public boolean handleMessage(Message message) {
+        switch (message.what) {
+            case MSG_TICK: {
+                long now = SystemClock.uptimeMillis();
+                boolean pending;
+
+                synchronized (mEnvelopes) {
+                    for (int i = mEnvelopes.size(); --i != -1;) {
+                        Envelope envelope = mEnvelopes.get(i);
+                        float progress = envelope.duration == 0 ? 1.0f : Math.min(1.0f, (float) (now - envelope.start) / envelope.duration);
+                        envelope.player.setGain(envelope.channel, gainAt(envelope, progress));
+
+                        if (progress >= 1.0f) {
+                            mEnvelopes.remove(i);
+                            if (null != envelope.onDone) {
+                                envelope.onDone.sendToTarget();
+                            }
+                        }
+                    }
+                    pending = mEnvelopes.size() > 0;
+                }
+
+                if (pending) {
+                    mHandler.sendEmptyMessageDelayed(MSG_TICK, MS_PER_TICK);
+                }
+                break;
+            }
+            default: {
+                break;
+            }
+        }
+        return true;
+    }
+}
+
+/*EOF*/
\ No newline at end of file
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2016 Mark Jivko https://markjivko.com
+ *
+ * Licensed under the GNU General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://gnu.org/licenses/gpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Redistributions of files must retain the above copyright notice.
+ */
+package com.fairplayer;
+
+import org.videolan.libvlc.LibVLC;
+import org.videolan.libvlc.Media;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of native Media objects, keyed by path.
+ *
+ * Holds the media of the current song and of the next few timeline
+ * entries, parsed ahead of time so duration, track list and metadata
+ * are already known when the song starts. The cache owns one reference
+ * to every entry; evicted entries are released right away and the
+ * native object is freed as soon as no player uses it anymore.
+ */
+public final class FpMediaCache {
+
+    /**
+     * How many upcoming timeline entries to keep parsed
+     */
+    public static final int PREFETCH_COUNT = 3;
+
+    /**
+     * Maximum number of cached entries: previous, current and upcoming songs
+     */
+    protected static final int MAX_ENTRIES = PREFETCH_COUNT + 2;
+
+    /**
+     * The cached media, least recently used first
+     */
+    protected static final LinkedHashMap<String, Media> sEntries = new LinkedHashMap<String, Media>(MAX_ENTRIES + 1, 0.75f, true);
+
+    private FpMediaCache() {
+    }
+
+    /**
+     * Get the media for the path, creating it if needed. The returned media
+     * is retained for the caller, which must release() it when done
+     */
+    public static synchronized Media obtain(LibVLC libVLC, String path) {
+        Media media = sEntries.get(path);
+
+        // Drop stale entries
+        if (null != media && !media.retain()) {
+            sEntries.remove(path);
+            media = null;
+        }
+
+        if (null == media) {
+            media = new Media(libVLC, path);
+            put(path, media);
+            media.retain();
+        }
+
+        return media;
+    }
+
+    /**
+     * Create and parse (asynchronously) the media of the upcoming songs
+     */
+    public static synchronized void prefetch(LibVLC libVLC, String[] paths) {
+        for (String path : paths) {
+            if (null == path) {
+                continue;
+            }
+
+            Media media = sEntries.get(path);
+            if (null == media || media.isReleased()) {
+                media = new Media(libVLC, path);
+                put(path, media);
+            }
+
+            if (!media.isParsed()) {
+                media.parseAsync(Media.Parse.ParseLocal);
+            }
+        }
+    }
+
+    /**
+     * Get the duration (in ms) of a parsed entry, -1 if unknown
+     */
+    public static synchronized long getDuration(String path) {
+        Media media = sEntries.get(path);
+        if (null == media || media.isReleased() || !media.isParsed()) {
+            return -1;
+        }
+        return media.getDuration();
+    }
+
+    /**
+     * Release all the cached entries
+     */
+    public static synchronized void clear() {
+        for (Media media : sEntries.values()) {
+            media.release();
+        }
+        sEntries.clear();
+    }
+
+    /**
+     * Store an entry, evicting the least recently used ones
+     */
+    private static void put(String path, Media media) {
+        Media previous = sEntries.put(path, media);
+        if (null != previous && previous != media) {
+            previous.release();
+        }
+
+        Iterator<Map.Entry<String, Media>> it = sEntries.entrySet().iterator();
+        while (sEntries.size() > MAX_ENTRIES && it.hasNext()) {
+            Media evicted = it.next().getValue();
+            it.remove();
+            evicted.release();
+        }
+    }
+}
+
+/*EOF*/
\ No newline at end of file
@@ -0,0 +1,309 @@
+/**
+ * Copyright 2016 Mark Jivko https://markjivko.com
+ *
+ * Licensed under the GNU General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://gnu.org/licenses/gpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Redistributions of files must retain the above copyright notice.
+ */
+package com.fairplayer;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deletes media in bulk: the files are deleted in parallel on a small
+ * pool, then the MediaStore rows of the deleted files are removed in
+ * chunked IN (...) statements. Progress is reported as files are deleted
+ * and the work can be cancelled at any time; files already deleted always
+ * get their rows removed.
+ */
+class FpMediaDeleter {
+
+    /**
+     * Receives the progress; called from worker threads
+     */
+    public interface Listener {
+
+        /**
+         * @param done The number of files processed
+         * @param total The number of files to delete
+         */
+        void onDeleteProgress(int done, int total);
+    }
+
+    /**
+     * Maximum number of files deleted at once
+     */
+    private static final int MAX_THREADS = 4;
+    /**
+     * Maximum number of rows per MediaStore statement
+     */
+    private static final int ROWS_PER_CHUNK = 200;
+
+    /**
+     * The resolver to update
+     */
+    private final ContentResolver mResolver;
+    /**
+     * Progress listener, may be null
+     */
+    private final Listener mListener;
+    /**
+     * Set by cancel()
+     */
+    private volatile boolean mCancelled;
+    /**
+     * Number of files that could not be deleted
+     */
+    private int mFailed;
+
+    public FpMediaDeleter(Context context, Listener listener) {
+        mResolver = context.getContentResolver();
+        mListener = listener;
+    }
+
+    /**
+     * Stop deleting; the files already deleted stay deleted
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Number of files that could not be deleted by the last call
+     */
+    public int getFailedCount() {
+        return mFailed;
+    }
+
+    /**
+     * Delete the songs of the given media.
+     *
+     * @param type One of FpUtilsMedia.TYPE_*
+     * @param id The MediaStore id of the media
+     *
+     * @return The MediaStore ids of the deleted songs
+     */
+    public long[] deleteMedia(int type, long id) {
+        String[] projection = new String[] {MediaStore.MediaColumns._ID, MediaStore.Audio.Media.DATA};
+        Cursor cursor = FpUtilsMedia.buildQuery(type, id, projection, null).runQuery(mResolver);
+        if (cursor == null) {
+            return new long[0];
+        }
+
+        int count = cursor.getCount();
+        long[] ids = new long[count];
+        String[] paths = new String[count];
+        for (int i = 0; i != count && cursor.moveToNext(); ++i) {
+            ids[i] = cursor.getLong(0);
+            paths[i] = cursor.getString(1);
+        }
+        cursor.close();
+
+        boolean[] deleted = deleteFiles(paths);
+
+        // Only the rows of the files that are gone
+        int found = 0;
+        for (int i = 0; i != count; ++i) {
+            if (deleted[i]) {
+                ids[found++] = ids[i];
+            }
+        }
+        long[] result = new long[found];
+        System.arraycopy(ids, 0, result, 0, found);
+        deleteRows(result);
+        return result;
+    }
+
+    /**
+     * Delete a file or a folder, recursively.
+     *
+     * @param file The file or folder
+     *
+     * @return The MediaStore ids of the songs that were deleted with it
+     */
+    public long[] deleteFile(File file) {
+        // The files first, then the folders, deepest first
+        ArrayList<String> files = new ArrayList<String>();
+        ArrayList<File> folders = new ArrayList<File>();
+        collect(file, files, folders);
+
+        String[] paths = files.toArray(new String[files.size()]);
+        boolean[] deleted = deleteFiles(paths);
+
+        if (!mCancelled) {
+            for (int i = folders.size(); --i != -1;) {
+                if (!folders.get(i).delete()) {
+                    mFailed++;
+                }
+            }
+        }
+
+        // Find the rows of the deleted files
+        ArrayList<String> gone = new ArrayList<String>();
+        for (int i = 0; i != paths.length; ++i) {
+            if (deleted[i]) {
+                gone.add(paths[i]);
+            }
+        }
+        long[] ids = queryIds(gone);
+        deleteRows(ids);
+        return ids;
+    }
+
+    /**
+     * List the files and folders under a file
+     */
+    private static void collect(File file, ArrayList<String> files, ArrayList<File> folders) {
+        File[] children = file.listFiles();
+        if (children == null) {
+            files.add(file.getPath());
+            return;
+        }
+
+        folders.add(file);
+        for (File child : children) {
+            collect(child, files, folders);
+        }
+    }
+
+    /**
+     * Delete the files on the pool
+     *
+     * @return Which files were deleted
+     */
+    private boolean[] deleteFiles(final String[] paths) {
+        final int total = paths.length;
+        final boolean[] deleted = new boolean[total];
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger done = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int i;
+                while (!mCancelled && (i = next.getAndIncrement()) < total) {
+                    deleted[i] = paths[i] != null && new File(paths[i]).delete();
+                    if (!deleted[i]) {
+                        failed.incrementAndGet();
+                    }
+                    int count = done.incrementAndGet();
+                    if (mListener != null) {
+                        mListener.onDeleteProgress(count, total);
+                    }
+                }
+            }
+        };
+
+        int threads = Math.min(MAX_THREADS, total);
+        if (threads <= 1) {
+            worker.run();
+        } else {
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            for (int t = 0; t != threads; ++t) {
+                pool.execute(worker);
+            }
+            pool.shutdown();
+            try {
+                while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+                    // Still deleting
+                }
+            } catch (InterruptedException e) {
+                // The pool finishes the files already started; keep the results seen so far
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        mFailed = failed.get();
+        return deleted;
+    }
+
+    /**
+     * Returns the MediaStore ids of the given paths
+     */
+    private long[] queryIds(ArrayList<String> paths) {
+        long[] ids = new long[paths.size()];
+        int found = 0;
+        for (int start = 0; start < paths.size(); start += ROWS_PER_CHUNK) {
+            int end = Math.min(paths.size(), start + ROWS_PER_CHUNK);
+            String[] args = paths.subList(start, end).toArray(new String[end - start]);
+            String selection = MediaStore.Audio.Media.DATA + " IN (" + placeholders(args.length) + ")";
+            Cursor cursor = FpUtilsMedia.queryResolver(mResolver, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, FpTrack.EMPTY_PROJECTION, selection, args, null);
+            if (cursor == null) {
+                continue;
+            }
+            while (cursor.moveToNext() && found < ids.length) {
+                ids[found++] = cursor.getLong(0);
+            }
+            cursor.close();
+        }
+
+        long[] result = new long[found];
+        System.arraycopy(ids, 0, result, 0, found);
+        return result;
+    }
+
+    /**
+     * Remove the MediaStore rows, in chunks
+     */
+    private void deleteRows(long[] ids) {
+        for (int start = 0; start < ids.length; start += ROWS_PER_CHUNK) {
+            int end = Math.min(ids.length, start + ROWS_PER_CHUNK);
+            StringBuilder selection = new StringBuilder(MediaStore.MediaColumns._ID + " IN (");
+            for (int i = start; i != end; ++i) {
+                if (i != start) {
+                    selection.append(',');
+                }
+                selection.append(ids[i]);
+            }
+            selection.append(')');
+
+            try {
+                mResolver.delete(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, selection.toString(), null);
+            } catch (RuntimeException e) {
+                Log.w(Constants.LOG_TAG, "Failed to remove deleted songs: " + e);
+            }
+        }
+    }
+
+    /**
+     * Returns "?,?,...,?"
+     */
+    private static String placeholders(int count) {
+        StringBuilder result = new StringBuilder(count * 2);
+        for (int i = 0; i != count; ++i) {
+            if (i != 0) {
+                result.append(',');
+            }
+            result.append('?');
+        }
+        return result.toString();
+    }
+}
+
+/*EOF*/
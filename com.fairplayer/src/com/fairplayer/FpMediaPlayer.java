@@ -21,6 +21,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.media.AudioManager;
 import android.media.audiofx.AudioEffect;
+import android.os.Looper;
+import android.os.SystemClock;
 
 import org.videolan.libvlc.LibVLC;
 import org.videolan.libvlc.Media;
@@ -28,7 +30,6 @@ import org.videolan.libvlc.MediaPlayer;
 import org.videolan.libvlc.MediaPlayer.*;
 
 import java.io.IOException;
-import java.util.ArrayList;
 
 public class FpMediaPlayer {
 
@@ -63,9 +64,27 @@ public class FpMediaPlayer {
     protected String mDataSource = null;
     protected FpMediaPlayer.Listener mMediaPlayerListener = null;
     
+    // Pre-roll
+    protected boolean mPrerolling = false;
+    protected boolean mPrerolled = false;
+    protected boolean mHandoff = false;
+    protected long mHandoffStart = 0;
+    
+    // Set once the data source was opened and started decoding
+    protected boolean mOpened = false;
+    
     // Sound alteration
     protected float mDuckingFactor = Float.NaN;
     protected boolean mIsDucking = false;
+    protected volatile float mFadeGain = 1.0f;
+    protected volatile float mDuckGain = 1.0f;
+    protected int mAppliedVolume = -1;
+    
+    // Position snapshot, read without touching the native player
+    protected volatile boolean mSnapshotPlaying = false;
+    protected volatile long mBasePosition = 0;
+    protected volatile long mBaseClock = 0;
+    protected volatile long mSnapshotDuration = -1;
 
     // Media information
     protected int mediaAudioStreamType = AudioManager.STREAM_MUSIC;
@@ -73,18 +92,16 @@ public class FpMediaPlayer {
     
     /**
      * Constructs a new FpMediaPlayer class
+     *
+     * @param mediaPlayerListener Receives the playback events
+     * @param looper The looper to receive the events on, null for the main thread
      */
-    public FpMediaPlayer (FpMediaPlayer.Listener mediaPlayerListener) {
-        // Prepare the options
-    	ArrayList<String> options = new ArrayList<String>();
-        options.add("--http-reconnect");
-        options.add("--network-caching=2000");
-        
-        // Set the VLC library
-        mLibVLC = new LibVLC(options);
+    public FpMediaPlayer (FpMediaPlayer.Listener mediaPlayerListener, Looper looper) {
+        // Get the shared VLC library
+        mLibVLC = FpMediaRuntime.acquire();
         
-        // Prepare the media player
-        mMediaPlayer = new MediaPlayer(mLibVLC);
+        // Lease a media player
+        mMediaPlayer = FpMediaRuntime.lease();
         
         // Store the context
         mContext = ActivityCommon.getContext();
@@ -97,20 +114,46 @@ public class FpMediaPlayer {
             @Override
             public void onEvent(Event event) {
             	switch (event.type) {
+                    // Playing
+                    case Event.Playing:
+                        mOpened = true;
+                        if (mPrerolling) {
+                            // The media is open and decoding: hold it at the start
+                            mPrerolling = false;
+                            mMediaPlayer.pause();
+                            mMediaPlayer.setTime(0);
+                            mPrerolled = true;
+                            updateVolume();
+                        } else if (0 != mHandoffStart) {
+                            // Handoff complete, report the silence gap
+                            long gap = SystemClock.elapsedRealtime() - mHandoffStart;
+                            mHandoffStart = 0;
+                            mMediaPlayerListener.onGaplessTransition(mMediaPlayer, gap);
+                        }
+                        if (!mPrerolled) {
+                            mMediaPlayerListener.onStarted(mMediaPlayer);
+                        }
+                        break;
+                        
                     // End reached
                     case Event.EndReached:
+                        setPositionBase(mSnapshotDuration > 0 ? mSnapshotDuration : getCurrentPosition(), false);
                         mMediaPlayerListener.onCompletion(mMediaPlayer);
                         break;
 
-                    // Encountered an error
+                    // Encountered an error; the media could not be opened
+                    // or decoded if it never played
                     case Event.EncounteredError:
-                        mMediaPlayerListener.onError(mMediaPlayer, (int) event.getTimeChanged(), (int) event.getPositionChanged());
+                        mMediaPlayerListener.onError(mMediaPlayer, mOpened ? MEDIA_ERROR_UNKNOWN : MEDIA_ERROR_UNSUPPORTED, (int) event.getPositionChanged());
                         break;
             	}
             }
     	};
     	
-    	// Set the event on the media player
+    	// Set the event on the media player; only the events we handle
+    	// reach Java, directly on the listener's looper
+    	mMediaPlayer.setEventDispatcher(looper);
+    	mMediaPlayer.setEventTypes(Event.Playing, Event.EndReached, Event.EncounteredError);
     	mMediaPlayer.setEventListener(eventListener);
     }
     
@@ -127,6 +170,16 @@ public class FpMediaPlayer {
          * On error listener
          */
         boolean onError(MediaPlayer mp, int what, int extra);
+        
+        /**
+         * Playback started (or resumed) audibly
+         */
+        void onStarted(MediaPlayer mp);
+        
+        /**
+         * Pre-rolled player took over, with the measured silence gap (in ms)
+         */
+        void onGaplessTransition(MediaPlayer mp, long gap);
     }
     
     /**
@@ -134,6 +187,14 @@ public class FpMediaPlayer {
      */
     public void reset() {
         mDataSource = null;
+        mFadeGain = 1.0f;
+        mPrerolling = false;
+        mPrerolled = false;
+        mOpened = false;
+        mHandoff = false;
+        mHandoffStart = 0;
+        mSnapshotDuration = -1;
+        setPositionBase(0, false);
         mMediaPlayer.stop();
     }
 
@@ -144,6 +205,14 @@ public class FpMediaPlayer {
         mDataSource = null;
         if (null != mCurrentMedia) {
             mCurrentMedia.release();
+            mCurrentMedia = null;
+        }
+        
+        // Give the player back to the shared runtime
+        if (null != mMediaPlayer) {
+            FpMediaRuntime.recycle(mMediaPlayer);
+            mMediaPlayer = null;
+            FpMediaRuntime.release();
         }
     }
 
@@ -151,13 +220,68 @@ public class FpMediaPlayer {
      * Sets the data source to use
      */
     public void setDataSource(String path) throws IOException, IllegalArgumentException, SecurityException, IllegalStateException {
-        mCurrentMedia = new Media(mLibVLC, path);
+        mPrerolling = false;
+        mPrerolled = false;
+        mOpened = false;
+        mHandoff = false;
+        mHandoffStart = 0;
+        // Re-use the parsed media if cached
+        Media media = FpMediaCache.obtain(mLibVLC, path);
         
     	if (null != mMediaPlayer) {
-            mMediaPlayer.setMedia(mCurrentMedia);
+            mMediaPlayer.setMedia(media);
         }
         
+        // Release the previous media
+        if (null != mCurrentMedia) {
+            mCurrentMedia.release();
+        }
+        mCurrentMedia = media;
         mDataSource = path;
+        
+        // Duration is known upfront if the media was parsed ahead
+        mSnapshotDuration = FpMediaCache.getDuration(path);
+        setPositionBase(0, false);
+    }
+
+    /**
+     * Opens and demuxes the data source ahead of time, then holds it
+     * paused at position 0 (muted while pre-rolling)
+     */
+    public void preroll() {
+        if (null == mDataSource || mPrerolling || mPrerolled) {
+            return;
+        }
+        mPrerolling = true;
+        setVolume(0, 0);
+        mMediaPlayer.play();
+    }
+
+    /**
+     * Returns true if the data source is pre-rolled and ready to start
+     */
+    public boolean isPrerolled() {
+        return mPrerolled;
+    }
+
+    /**
+     * Start the pre-rolled media as the successor of a track that ended
+     *
+     * @param endReachedAt SystemClock#elapsedRealtime() of the previous track's end
+     */
+    public void startHandoff(long endReachedAt) {
+        mHandoff = true;
+        mHandoffStart = endReachedAt;
+        mPrerolled = false;
+        setPositionBase(0, true);
+        mMediaPlayer.play();
+    }
+
+    /**
+     * Returns true if this player started as a gapless successor
+     */
+    public boolean isHandingOff() {
+        return mHandoff;
     }
 
     /**
@@ -210,8 +334,32 @@ public class FpMediaPlayer {
      * @param isDucking true if we are ducking, false if we are not
      */
     public void setIsDucking(boolean isDucking) {
+        setIsDucking(isDucking, true);
+    }
+
+    /**
+     * Sets whether we are ducking or not
+     *
+     * @param isDucking true if we are ducking, false if we are not
+     * @param apply apply the ducking gain right away; false if a
+     * FpFadeEngine ramp takes care of it
+     */
+    public void setIsDucking(boolean isDucking, boolean apply) {
         mIsDucking = isDucking;
-        updateVolume();
+        if (apply) {
+            mDuckGain = getDuckingTarget();
+            updateVolume();
+        }
+    }
+
+    /**
+     * Get the ducking gain matching the current ducking state
+     */
+    public float getDuckingTarget() {
+        if (mIsDucking && !Float.isNaN(mDuckingFactor)) {
+            return mDuckingFactor;
+        }
+        return 1.0f;
     }
 
     /**
@@ -222,18 +370,48 @@ public class FpMediaPlayer {
      */
     public void setDuckingFactor(float duckingFactor) {
         mDuckingFactor = duckingFactor;
+        mDuckGain = getDuckingTarget();
         updateVolume();
     }
 
     /**
-     * Sets the volume, using ducking if appropriate
+     * Set the gain of a FpFadeEngine channel and apply it
+     *
+     * @param channel One of FpFadeEngine.CHANNEL_*
+     * @param gain Value between 0.0f and 1.0f
      */
-    public void updateVolume() {
-        float volume = 1.0f;
-        if (mIsDucking && !Float.isNaN(mDuckingFactor)) {
-            volume *= mDuckingFactor;
+    public void setGain(int channel, float gain) {
+        if (channel == FpFadeEngine.CHANNEL_DUCK) {
+            mDuckGain = gain;
+        } else {
+            mFadeGain = gain;
+        }
+        updateVolume();
+    }
+
+    /**
+     * Get the gain of a FpFadeEngine channel
+     *
+     * @param channel One of FpFadeEngine.CHANNEL_*
+     */
+    public float getGain(int channel) {
+        return channel == FpFadeEngine.CHANNEL_DUCK ? mDuckGain : mFadeGain;
+    }
+
+    /**
+     * Sets the volume, using the fade and ducking gains; the native
+     * player is only called when the volume actually changes
+     */
+    public synchronized void updateVolume() {
+        if (mPrerolling || null == mMediaPlayer) {
+            return;
+        }
+        
+        int volume = (int) (mFadeGain * mDuckGain * 100);
+        if (volume != mAppliedVolume) {
+            mAppliedVolume = volume;
+            mMediaPlayer.setVolume(volume);
         }
-        this.setVolume(volume, volume);
     }
 
     /**
@@ -247,6 +425,12 @@ public class FpMediaPlayer {
      * Start the media player
      */
     public void start() throws IllegalStateException {
+        if (mPrerolling) {
+            mPrerolling = false;
+            updateVolume();
+        }
+        mPrerolled = false;
+        setPositionBase(getCurrentPosition(), true);
         mMediaPlayer.play();
     }
 
@@ -254,6 +438,7 @@ public class FpMediaPlayer {
      * Stop the media player
      */
     public void stop() throws IllegalStateException {
+        setPositionBase(0, false);
         mMediaPlayer.stop();
     }
 
@@ -261,6 +446,7 @@ public class FpMediaPlayer {
      * Pause the media player
      */
     public void pause() throws IllegalStateException {
+        setPositionBase(getCurrentPosition(), false);
         mMediaPlayer.pause();
     }
 
@@ -275,21 +461,71 @@ public class FpMediaPlayer {
      * Navigate to a millisecond
      */
     public void seekTo(int msec) throws IllegalStateException {
+    	setPositionBase(msec, mSnapshotPlaying);
     	mMediaPlayer.setTime((long) msec);
     }
 
     /**
-     * Get the current position (in ms), -1 if there is no media
+     * Get the current position (in ms), -1 if there is no media.
+     * Served from the snapshot: the newest of the last start/seek and the
+     * last TimeChanged event, extrapolated while playing; no native call
      */
     public int getCurrentPosition() {
-        return (int) mMediaPlayer.getTime();
+        if (null == mDataSource || null == mMediaPlayer) {
+            return -1;
+        }
+        
+        // Start from the last known base
+        long position = mBasePosition;
+        long clock = mBaseClock;
+        
+        // A more recent time reported by the native player wins
+        long eventClock = mMediaPlayer.getTimeSnapshotClock();
+        long eventTime = mMediaPlayer.getTimeSnapshot();
+        if (eventClock > clock && eventTime >= 0) {
+            position = eventTime;
+            clock = eventClock;
+        }
+        
+        // Extrapolate between events
+        if (mSnapshotPlaying) {
+            position += SystemClock.elapsedRealtime() - clock;
+        }
+        
+        // Never go past the end
+        long duration = mSnapshotDuration;
+        if (duration > 0 && position > duration) {
+            position = duration;
+        }
+        return (int) Math.max(0, position);
     }
 
     /**
      * Get the duration (in ms), -1 if there is no media
      */
     public int getDuration() {
-        return (int) mMediaPlayer.getLength();
+        if (null == mDataSource || null == mMediaPlayer) {
+            return -1;
+        }
+        
+        // Ask the native player once, until the length is known
+        if (mSnapshotDuration <= 0) {
+            long length = mMediaPlayer.getLength();
+            if (length > 0) {
+                mSnapshotDuration = length;
+            }
+            return (int) length;
+        }
+        return (int) mSnapshotDuration;
+    }
+    
+    /**
+     * Move the position snapshot to a known position
+     */
+    protected void setPositionBase(long position, boolean playing) {
+        mBasePosition = position;
+        mBaseClock = SystemClock.elapsedRealtime();
+        mSnapshotPlaying = playing;
     }
 
     /**
@@ -309,10 +545,9 @@ public class FpMediaPlayer {
     /**
      * Set the volume
      */
-    public void setVolume(float leftVolume, float rightVolume) {
-        mMediaPlayer.setVolume(
-            (int) ((leftVolume + rightVolume) * 100/2)
-        );
+    public synchronized void setVolume(float leftVolume, float rightVolume) {
+        mAppliedVolume = (int) ((leftVolume + rightVolume) * 100/2);
+        mMediaPlayer.setVolume(mAppliedVolume);
     }
     
     /**
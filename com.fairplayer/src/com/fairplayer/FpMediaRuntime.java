@@ -0,0 +1,167 @@
+/**
+ * Copyright 2016 Mark Jivko https://markjivko.com
+ *
+ * Licensed under the GNU General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://gnu.org/licenses/gpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Redistributions of files must retain the above copyright notice.
+ */
+package com.fairplayer;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.videolan.libvlc.LibVLC;
+import org.videolan.libvlc.MediaPlayer;
+
+import java.util.ArrayList;
+
+/**
+ * Process-wide LibVLC runtime shared by every FpMediaPlayer.
+ *
+ * The runtime is reference counted: the first FpMediaPlayer boots LibVLC
+ * (module bank, audio output, threads) and the last one to be released
+ * tears it down. Native MediaPlayer objects are leased from a small pool
+ * so additional players are cheap to create.
+ */
+public final class FpMediaRuntime {
+
+    /**
+     * Maximum number of idle players kept around for re-use
+     */
+    protected static final int MAX_IDLE_PLAYERS = 3;
+
+    /**
+     * The shared LibVLC instance
+     */
+    protected static LibVLC sLibVLC = null;
+
+    /**
+     * Number of active references to the runtime
+     */
+    protected static int sRefCount = 0;
+
+    /**
+     * Idle players, ready to be leased
+     */
+    protected static final ArrayList<MediaPlayer> sIdlePlayers = new ArrayList<MediaPlayer>(MAX_IDLE_PLAYERS);
+
+    /**
+     * Time (in ms) it took to boot the runtime
+     */
+    protected static long sStartupTime = 0;
+
+    private FpMediaRuntime() {
+    }
+
+    /**
+     * Get a reference to the shared LibVLC instance, creating it if needed.
+     * Every call must be balanced by a call to FpMediaRuntime#release()
+     */
+    public static synchronized LibVLC acquire() {
+        if (null == sLibVLC) {
+            long start = SystemClock.elapsedRealtime();
+
+            // Prepare the options
+            ArrayList<String> options = new ArrayList<String>();
+            options.add("--http-reconnect");
+            options.add("--network-caching=2000");
+
+            // Set the VLC library
+            sLibVLC = new LibVLC(options);
+
+            // Store the startup time
+            sStartupTime = SystemClock.elapsedRealtime() - start;
+            Log.d(Constants.LOG_TAG, "LibVLC runtime started in " + sStartupTime + "ms");
+        }
+
+        sRefCount++;
+        return sLibVLC;
+    }
+
+    /**
+     * Drop a reference to the shared runtime; the native objects are freed
+     * when the last reference is gone
+     */
+    public static synchronized void release() {
+        if (sRefCount <= 0) {
+            return;
+        }
+
+        if (--sRefCount == 0) {
+            FpMediaCache.clear();
+            for (MediaPlayer player : sIdlePlayers) {
+                player.release();
+            }
+            sIdlePlayers.clear();
+
+            if (null != sLibVLC) {
+                sLibVLC.release();
+                sLibVLC = null;
+            }
+            Log.d(Constants.LOG_TAG, "LibVLC runtime released");
+        }
+    }
+
+    /**
+     * Lease a media player from the pool. The caller must hold a runtime
+     * reference and give the player back with FpMediaRuntime#recycle()
+     */
+    public static synchronized MediaPlayer lease() {
+        if (null == sLibVLC) {
+            throw new IllegalStateException("LibVLC runtime not acquired");
+        }
+
+        // Re-use an idle player
+        if (sIdlePlayers.size() > 0) {
+            return sIdlePlayers.remove(sIdlePlayers.size() - 1);
+        }
+
+        return new MediaPlayer(sLibVLC);
+    }
+
+    /**
+     * Give a leased media player back to the pool
+     */
+    public static synchronized void recycle(MediaPlayer player) {
+        if (null == player || player.isReleased()) {
+            return;
+        }
+
+        // Detach the player from its previous owner
+        player.setEventListener(null);
+        player.stop();
+        player.setEqualizer(null);
+
+        if (null != sLibVLC && sIdlePlayers.size() < MAX_IDLE_PLAYERS) {
+            sIdlePlayers.add(player);
+        } else {
+            player.release();
+        }
+    }
+
+    /**
+     * Get the shared LibVLC instance, null if the runtime is not running
+     */
+    public static synchronized LibVLC getLibVLC() {
+        return sLibVLC;
+    }
+
+    /**
+     * Time (in ms) it took to boot the runtime; 0 if it is not running
+     */
+    public static synchronized long getStartupTime() {
+        return null == sLibVLC ? 0 : sStartupTime;
+    }
+}
+
+/*EOF*/
\ No newline at end of file
@@ -26,13 +26,11 @@ import android.app.backup.BackupManager;
 import android.appwidget.AppWidgetManager;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.database.ContentObserver;
-import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.Canvas;
@@ -53,11 +51,9 @@ import android.util.Log;
 import android.view.View;
 import android.widget.RemoteViews;
 import android.widget.Toast;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import org.videolan.libvlc.LibVLC;
 import org.videolan.libvlc.MediaPlayer;
 
 /**
@@ -80,6 +76,33 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
      */
     protected static final int REWIND_AFTER_PLAYED_MS = 5000;
 
+    /**
+     * Target for the silence gap between two gapless tracks (in ms)
+     */
+    protected static final long GAPLESS_TARGET_MS = 50;
+
+    /**
+     * Duration of the fade-out after the idle timeout (in ms)
+     */
+    protected static final long IDLE_FADE_OUT_MS = 5000;
+
+    /**
+     * Duration of the ducking volume ramp (in ms)
+     */
+    protected static final long DUCKING_RAMP_MS = 300;
+
+    /**
+     * Delay (in ms) before checking again for the length of the song, when
+     * scheduling the crossfade
+     */
+    protected static final long CROSSFADE_LENGTH_RETRY_MS = 1000;
+
+    /**
+     * How many times to check for the length of the song before giving up
+     * on the crossfade
+     */
+    protected static final int CROSSFADE_LENGTH_ATTEMPTS = 5;
+
     /**
      * FpAction for startService: toggle playback on/off.
      */
@@ -256,6 +279,21 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
      */
     protected static final Object[] sWait = new Object[0];
     
+    /**
+     * Callbacks waiting for the FpServiceRendering startup to complete.
+     */
+    protected static final ArrayList<ReadyCallback> sReadyCallbacks = new ArrayList<ReadyCallback>(2);
+    
+    /**
+     * Receives the FpServiceRendering instance once all startup stages completed
+     */
+    public interface ReadyCallback {
+        /**
+         * Called on the main thread
+         */
+        void onServiceReady(FpServiceRendering service);
+    }
+    
     /**
      * The appplication-wide instance of the FpServiceRendering.
      */
@@ -327,9 +365,24 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
     protected String mErrorMessage;
     
     /**
-     * Current fade-out progress. 1.0f if we are not fading out
+     * Drives all the volume fades of our media players
+     */
+    protected FpFadeEngine mFadeEngine;
+
+    /**
+     * True while the idle timeout fade-out is in progress
+     */
+    protected boolean mIdleFading;
+
+    /**
+     * Crossfade duration (in ms), 0 if crossfading is disabled
      */
-    protected float mFadeOut = 1.0f;
+    protected int mCrossfadeDuration;
+
+    /**
+     * The outgoing player while a crossfade is in progress, null otherwise
+     */
+    protected FpMediaPlayer mFadingOutPlayer;
     
     /**
      * Elapsed realtime at which playback was paused by idle timeout. -1
@@ -369,13 +422,60 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
      */
     protected FpThreadPreloader mReadahead;
     
+    /**
+     * Checks the upcoming timeline entries in the background
+     */
+    protected FpThreadValidator mValidator;
+    
+    /**
+     * Persists the timeline
+     */
+    protected FpTrackJournal mJournal;
+    
     /**
      * Reference to Playcounts helper class
      */
     protected FpPlayCounter mPlayCounts;
+    
+    /**
+     * Silence gap (in ms) measured at the last gapless transition
+     */
+    protected long mLastTransitionGap = -1;
+    
+    /**
+     * SystemClock#elapsedRealtime() when the service was created
+     */
+    protected long mCreateTime = 0;
+    
+    /**
+     * Set once all the startup stages completed
+     */
+    protected volatile boolean mReady = false;
+    
+    /**
+     * Set once startup stage 2 created the media players, cleared on destroy
+     */
+    protected volatile boolean mPlayerReady = false;
+    
+    /**
+     * Commands received before the startup completed, guarded by sWait
+     */
+    protected final ArrayList<Intent> mPendingCommands = new ArrayList<Intent>(2);
+    
+    /**
+     * Time (in ms) from creation until all startup stages completed, -1 if not ready
+     */
+    protected long mTimeToInteractive = -1;
+    
+    /**
+     * Time (in ms) from creation until the first audio was played, -1 if none yet
+     */
+    protected long mTimeToFirstAudio = -1;
 
     @Override
     public void onCreate() {
+        mCreateTime = SystemClock.elapsedRealtime();
+        
         // Set the context
         ActivityCommon.setContext(this.getApplicationContext());
         
@@ -383,29 +483,19 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
         HandlerThread thread = new HandlerThread(FpServiceRendering.class.getSimpleName(), Process.THREAD_PRIORITY_DEFAULT);
         thread.start();
         
+        mLooper = thread.getLooper();
+        mHandler = new Handler(mLooper, this);
+        
+        // Stage 1: the minimal control surface, on the main thread
         mTimeline = new FpTrackTimeline(this);
         mTimeline.setCallback(this);
-        int state = loadState();
-
-        mPlayCounts = new FpPlayCounter(this);
-
-        // Prepare the media player
-        mMediaPlayer = new FpMediaPlayer(this);
-        mPreparedMediaPlayer = new FpMediaPlayer(this);
-        
-        // Update the player's equalizer
-        EqualizerUtil.updatePlayer(mMediaPlayer.getPlayer());
-        
-        // We only have a single audio session
-        mPreparedMediaPlayer.setAudioSessionId(mMediaPlayer.getAudioSessionId());
-        
-        mReadahead = new FpThreadPreloader();
+        mJournal = new FpTrackJournal(this, STATUS_FILE);
+        mTimeline.setJournal(mJournal);
 
         mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
         mAudioManager = (AudioManager) getSystemService(AUDIO_SERVICE);
 
         SharedPreferences settings = PreferenceUtils.getPreferences(this.getApplicationContext());
-        settings.registerOnSharedPreferenceChangeListener(this);
         mSeekStep = settings.getInt(Constants.Keys.SETTINGS_SEEK_STEP, Constants.Defaults.SETTINGS_SEEK_STEP);
         mNotificationMode = settings.getBoolean(Constants.Keys.SETTINGS_STATUS_BAR_ENABLED, Constants.Defaults.SETTINGS_STATUS_BAR_ENABLED);
         mNotificationNag = settings.getBoolean(Constants.Keys.SETTINGS_STATUS_BAR_NOW_PLAYING_ENABLED, Constants.Defaults.SETTINGS_STATUS_BAR_NOW_PLAYING_ENABLED);
@@ -417,7 +507,7 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
         mNotificationAction = createNotificationAction(settings);
         mBlurKeepPlayingVolume = settings.getInt(Constants.Keys.SETTINGS_BLUR_KEEP_PLAYING_VOLUME, Constants.Defaults.SETTINGS_BLUR_KEEP_PLAYING_VOLUME);
         mBlurKeepPlaying = settings.getBoolean(Constants.Keys.SETTINGS_BLUR_KEEP_PLAYING_ENABLED, Constants.Defaults.SETTINGS_BLUR_KEEP_PLAYING_ENABLED);
-        refreshDuckingValues();
+        mCrossfadeDuration = settings.getBoolean(Constants.Keys.SETTINGS_CROSSFADE_ENABLED, Constants.Defaults.SETTINGS_CROSSFADE_ENABLED) ? settings.getInt(Constants.Keys.SETTINGS_CROSSFADE_DURATION, Constants.Defaults.SETTINGS_CROSSFADE_DURATION) * 1000 : 0;
 
         PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
         mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "a1 Music Lock");
@@ -428,25 +518,103 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
         filter.addAction(Intent.ACTION_SCREEN_ON);
         registerReceiver(mReceiver, filter);
 
-        getContentResolver().registerContentObserver(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, mObserver);
-
         mRemoteControlClient = new FpRemoteControl().getClient(this);
         mRemoteControlClient.initializeRemote();
 
-        mLooper = thread.getLooper();
-        mHandler = new Handler(mLooper, this);
+        // Stages 2 and 3 run on our own thread, in order
+        mHandler.sendEmptyMessage(MSG_STARTUP_PLAYER);
+        mHandler.sendEmptyMessage(MSG_STARTUP_QUEUE);
+    }
+
+    /**
+     * Startup stage 2: LibVLC, the media players and their helpers
+     */
+    protected void startupPlayer() {
+        mPlayCounts = new FpPlayCounter(this);
+
+        // Prepare the media player
+        // Completion and error events are handled on our own thread
+        mMediaPlayer = new FpMediaPlayer(this, mLooper);
+        mPreparedMediaPlayer = new FpMediaPlayer(this, mLooper);
+        
+        // Both players share the same equalizer
+        EqualizerUtil.registerPlayer(mMediaPlayer.getPlayer());
+        EqualizerUtil.registerPlayer(mPreparedMediaPlayer.getPlayer());
+        
+        // We only have a single audio session
+        mPreparedMediaPlayer.setAudioSessionId(mMediaPlayer.getAudioSessionId());
+        
+        mReadahead = new FpThreadPreloader();
+        mValidator = new FpThreadValidator();
+        mFadeEngine = new FpFadeEngine();
+        refreshDuckingValues();
+        mPlayerReady = true;
+    }
+
+    /**
+     * Startup stage 3: hydrate the saved queue and restore the state
+     */
+    protected void startupQueue() {
+        int state = loadState();
+
+        getContentResolver().registerContentObserver(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, mObserver);
+        PreferenceUtils.getPreferences(this.getApplicationContext()).registerOnSharedPreferenceChangeListener(this);
 
         updateState(state);
         setCurrentSong(0);
 
-        sInstance = this;
+        // Report the metric
+        mTimeToInteractive = SystemClock.elapsedRealtime() - mCreateTime;
+        Log.d(Constants.LOG_TAG, "Service interactive in " + mTimeToInteractive + "ms");
+
+        // Release the waiting callers and the queued commands
+        final ArrayList<ReadyCallback> callbacks;
+        final ArrayList<Intent> commands;
         synchronized (sWait) {
+            mReady = true;
+            sInstance = this;
             sWait.notifyAll();
+            callbacks = new ArrayList<ReadyCallback>(sReadyCallbacks);
+            sReadyCallbacks.clear();
+            commands = new ArrayList<Intent>(mPendingCommands);
+            mPendingCommands.clear();
+        }
+
+        if (callbacks.size() > 0 || commands.size() > 0) {
+            new Handler(Looper.getMainLooper()).post(new Runnable() {
+                @Override
+                public void run() {
+                    for (ReadyCallback callback : callbacks) {
+                        callback.onServiceReady(FpServiceRendering.this);
+                    }
+                    for (Intent command : commands) {
+                        handleCommand(command);
+                    }
+                }
+            });
         }
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        // Still starting up: run the command once ready
+        synchronized (sWait) {
+            if (!mReady) {
+                if (null != intent) {
+                    mPendingCommands.add(intent);
+                }
+                return START_NOT_STICKY;
+            }
+        }
+
+        handleCommand(intent);
+        return START_NOT_STICKY;
+    }
+
+    /**
+     * Handle a command sent through startService()
+     */
+    protected void handleCommand(Intent intent) {
         if (null != intent) {
             // Get the action
             String action = intent.getAction();
@@ -575,13 +743,16 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
             	
             } while (false);
         }
-
-        return START_NOT_STICKY;
     }
 
     @Override
     public void onDestroy() {
-        sInstance = null;
+        synchronized (sWait) {
+            sInstance = null;
+            mReady = false;
+            mPendingCommands.clear();
+        }
+        mPlayerReady = false;
         mLooper.quit();
 
         // clear the notification
@@ -590,12 +761,31 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
         // defer wakelock and close audioFX
         enterSleepState();
 
+        // End the helper threads, the fades first so no ramp touches a released player
+        if (mFadeEngine != null) {
+            mFadeEngine.quit();
+        }
+
+        if (mReadahead != null) {
+            mReadahead.quit();
+        }
+
+        if (mValidator != null) {
+            mValidator.quit();
+        }
+
+        if (mTimeline != null) {
+            mTimeline.release();
+        }
+
         if (mMediaPlayer != null) {
+            EqualizerUtil.unregisterPlayer(mMediaPlayer.getPlayer());
             mMediaPlayer.release();
             mMediaPlayer = null;
         }
 
         if (mPreparedMediaPlayer != null) {
+            EqualizerUtil.unregisterPlayer(mPreparedMediaPlayer.getPlayer());
             mPreparedMediaPlayer.release();
             mPreparedMediaPlayer = null;
         }
@@ -622,14 +812,6 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
         mp.updateVolume();
     }
 
-    /**
-     * Refresh the media player's volume
-     */
-    protected void refreshVolume() {
-        mMediaPlayer.updateVolume();
-        mPreparedMediaPlayer.updateVolume();
-    }
-
     protected void refreshDuckingValues() {
         float duckingFactor = ((float) mBlurKeepPlayingVolume) / 100f;
         mMediaPlayer.setDuckingFactor(duckingFactor);
@@ -664,6 +846,11 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
             return;
         }
 
+        // The prepared player is still fading out
+        if (null != mFadingOutPlayer && mFadingOutPlayer == mPreparedMediaPlayer) {
+            return;
+        }
+
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
             return; 
         }
@@ -673,6 +860,7 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
         FpTrack nextSong = getSong(1);
 
         if (nextSong != null
+                && !mValidator.isBroken(nextSong.path)
                 && fa != FpTrackTimeline.FINISH_REPEAT_CURRENT
                 && !mTimeline.isEndOfQueue()) {
             doGapless = true;
@@ -684,14 +872,56 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
             try {
                 if (nextSong.path.equals(mPreparedMediaPlayer.getDataSource()) == false) {
                     // Prepared MP has a different data source: We need to re-initalize
-                    // it and set it as the next MP for the active media player
+                    // it and pre-roll it as the successor of the active media player
                     mPreparedMediaPlayer.reset();
                     prepareMediaPlayer(mPreparedMediaPlayer, nextSong.path);
+                    mPreparedMediaPlayer.preroll();
                 }
             } catch (IOException e) {
                 mPreparedMediaPlayer.reset();
             }
         }
+
+        prefetchMedia();
+        validateUpcoming();
+    }
+
+    /**
+     * Checks the upcoming timeline entries in the background, so broken
+     * entries can be skipped without delay
+     */
+    protected void validateUpcoming() {
+        String[] paths = new String[FpThreadValidator.VALIDATE_COUNT];
+        FpTrackTimelineSnapshot snapshot = mTimeline.getSnapshot();
+        int position = snapshot.getPosition();
+        for (int i = 0; i < paths.length && position + 1 + i < snapshot.size(); i++) {
+            FpTrack song = snapshot.load(position + 1 + i);
+            if (null != song) {
+                paths[i] = song.path;
+            }
+        }
+        mValidator.validate(paths);
+    }
+
+    /**
+     * Parses the media of the upcoming timeline entries ahead of time
+     */
+    protected void prefetchMedia() {
+        LibVLC libVLC = FpMediaRuntime.getLibVLC();
+        if (null == libVLC) {
+            return;
+        }
+
+        String[] paths = new String[FpMediaCache.PREFETCH_COUNT];
+        FpTrackTimelineSnapshot snapshot = mTimeline.getSnapshot();
+        int position = snapshot.getPosition();
+        for (int i = 0; i < paths.length && position + 1 + i < snapshot.size(); i++) {
+            FpTrack song = snapshot.load(position + 1 + i);
+            if (null != song) {
+                paths[i] = song.path;
+            }
+        }
+        FpMediaCache.prefetch(libVLC, paths);
     }
 
     /**
@@ -700,7 +930,13 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
     protected void triggerReadAhead() {
         FpTrack song = mCurrentSong;
         if ((mState & FLAG_PLAYING) != 0 && song != null) {
-            mReadahead.setSource(song.path);
+            // Warm the next song too, unless it is the same one again
+            FpTrack nextSong = finishAction(mState) == FpTrackTimeline.FINISH_REPEAT_CURRENT ? null : getSong(1);
+            if (null != nextSong) {
+                mReadahead.setSource(song.path, song.duration, nextSong.path, nextSong.duration);
+            } else {
+                mReadahead.setSource(song.path, song.duration, null, 0);
+            }
         } else {
             mReadahead.pause();
         }
@@ -752,6 +988,12 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
     	        break;
     	    }
 
+    	    if (key.equals(Constants.Keys.SETTINGS_CROSSFADE_ENABLED) || key.equals(Constants.Keys.SETTINGS_CROSSFADE_DURATION)) {
+    	        mCrossfadeDuration = settings.getBoolean(Constants.Keys.SETTINGS_CROSSFADE_ENABLED, Constants.Defaults.SETTINGS_CROSSFADE_ENABLED) ? settings.getInt(Constants.Keys.SETTINGS_CROSSFADE_DURATION, Constants.Defaults.SETTINGS_CROSSFADE_DURATION) * 1000 : 0;
+    	        scheduleCrossfade();
+    	        break;
+    	    }
+
     	} while (false);
     	
         /*
@@ -839,6 +1081,7 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
                 if (mMediaPlayerInitialized) {
                     mMediaPlayer.start();
                 }
+                scheduleCrossfade();
 
                 if (mNotificationMode) {
                     startForeground(NOTIFICATION_ID, createNotification(mCurrentSong, mState, mNotificationMode));
@@ -858,6 +1101,9 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
                 if (mMediaPlayerInitialized) {
                     mMediaPlayer.pause();
                 }
+                mHandler.removeMessages(MSG_CROSSFADE);
+                mHandler.removeMessages(MSG_SCHEDULE_CROSSFADE);
+                finishCrossfade();
 
                 // We are switching into background mode. The notification will be removed
                 // unless we forcefully show it (or the user selected to always show it)
@@ -892,8 +1138,8 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
 
         if ((toggled & FLAG_DUCKING) != 0) {
             boolean isDucking = (state & FLAG_DUCKING) != 0;
-            mMediaPlayer.setIsDucking(isDucking);
-            mPreparedMediaPlayer.setIsDucking(isDucking);
+            mFadeEngine.duck(mMediaPlayer, isDucking, DUCKING_RAMP_MS);
+            mFadeEngine.duck(mPreparedMediaPlayer, isDucking, DUCKING_RAMP_MS);
         }
     }
 
@@ -1085,7 +1331,8 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
             return null;
         }
 
-        if (mMediaPlayer.isPlaying()) {
+        // The outgoing player of a crossfade keeps playing until it is silent
+        if (mMediaPlayer.isPlaying() && mMediaPlayer != mFadingOutPlayer) {
             mMediaPlayer.stop();
         }
 
@@ -1129,16 +1376,29 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
 
         try {
             mMediaPlayerInitialized = false;
-            mMediaPlayer.reset();
+            if (mMediaPlayer != mFadingOutPlayer) {
+                mMediaPlayer.reset();
+            }
 
-            if (mPreparedMediaPlayer.isPlaying()) {
-                // The prepared media player is playing as the previous song
-                // reched its end 'naturally' (-> gapless)
+            // Known broken entry, skip it right away
+            if (mValidator.isBroken(song.path)) {
+                throw new IOException("Invalid track " + song.path);
+            }
+
+            boolean handoff = false;
+            if (song.path.equals(mPreparedMediaPlayer.getDataSource()) && (mPreparedMediaPlayer.isHandingOff() || mPreparedMediaPlayer.isPrerolled())) {
+                // The prepared media player is already playing as the previous song
+                // reched its end 'naturally' (-> gapless) or it is pre-rolled
                 // We can now swap mPreparedMediaPlayer and mMediaPlayer
+                handoff = mPreparedMediaPlayer.isHandingOff();
                 FpMediaPlayer tmpPlayer = mMediaPlayer;
                 mMediaPlayer = mPreparedMediaPlayer;
                 mPreparedMediaPlayer = tmpPlayer; // this was mMediaPlayer and is in reset() state
             } else {
+                // A successor that already started is no longer wanted
+                if (mPreparedMediaPlayer.isHandingOff()) {
+                    mPreparedMediaPlayer.reset();
+                }
                 prepareMediaPlayer(mMediaPlayer, song.path);
             }
 
@@ -1152,9 +1412,10 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
                 mPendingSeek = 0;
             }
 
-            if ((mState & FLAG_PLAYING) != 0) {
+            if ((mState & FLAG_PLAYING) != 0 && !handoff) {
                 mMediaPlayer.start();
             }
+            scheduleCrossfade();
 
             if ((mState & FLAG_ERROR) != 0) {
                 mErrorMessage = null;
@@ -1165,9 +1426,12 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
              */
 
         } catch (IOException e) {
+            boolean knownBroken = mValidator.isBroken(song.path);
             mErrorMessage = getResources().getString(R.string.fp_menu_notif_track_error, song.path);
             updateState(mState | FLAG_ERROR);
-            showMirrorLinkSafeToast(mErrorMessage, Toast.LENGTH_LONG);
+            if (!knownBroken) {
+                showMirrorLinkSafeToast(mErrorMessage, Toast.LENGTH_LONG);
+            }
             Log.e(Constants.LOG_TAG, "IOException", e);
 
             /*
@@ -1178,7 +1442,7 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
              */
             if (mTimeline.isEndOfQueue() == false && getSong(1) != null && (playing || (mSkipBroken > 0 && mSkipBroken < 10))) {
                 mSkipBroken++;
-                mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_SKIP_BROKEN_SONG, getTimelinePosition(), 0), 1000);
+                mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_SKIP_BROKEN_SONG, getTimelinePosition(), 0), knownBroken ? 0 : 1000);
             }
 
         }
@@ -1189,6 +1453,13 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
 
     @Override
     public void onCompletion(MediaPlayer player) {
+        long endReachedAt = SystemClock.elapsedRealtime();
+        
+        // The outgoing player of a crossfade reached its end
+        if (player != mMediaPlayer.getPlayer()) {
+            return;
+        }
+        
         // Count this song as played
         mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_UPDATE_PLAYCOUNTS, mCurrentSong), 2500);
         if (finishAction(mState) == FpTrackTimeline.FINISH_REPEAT_CURRENT) {
@@ -1197,14 +1468,168 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
             if (mTimeline.isEndOfQueue()) {
                 unsetFlag(FLAG_PLAYING);
             } else {
+                // Start the pre-rolled successor right away
+                FpTrack nextSong = getSong(1);
+                if ((mState & FLAG_PLAYING) != 0 && nextSong != null
+                        && nextSong.path.equals(mPreparedMediaPlayer.getDataSource())
+                        && mPreparedMediaPlayer.isPrerolled()) {
+                    mPreparedMediaPlayer.startHandoff(endReachedAt);
+                }
                 setCurrentSong(+1);
             }
         }
     }
 
+    @Override
+    public void onStarted(MediaPlayer player) {
+        if (mTimeToFirstAudio < 0) {
+            mTimeToFirstAudio = SystemClock.elapsedRealtime() - mCreateTime;
+            Log.d(Constants.LOG_TAG, "First audio after " + mTimeToFirstAudio + "ms");
+        }
+    }
+
+    @Override
+    public void onGaplessTransition(MediaPlayer player, long gap) {
+        mLastTransitionGap = gap;
+        if (gap > GAPLESS_TARGET_MS) {
+            Log.w(Constants.LOG_TAG, "Gapless transition took " + gap + "ms, target is " + GAPLESS_TARGET_MS + "ms");
+        } else {
+            Log.d(Constants.LOG_TAG, "Gapless transition took " + gap + "ms");
+        }
+    }
+
+    /**
+     * Schedules the crossfade into the next song, if enabled
+     */
+    protected void scheduleCrossfade() {
+        scheduleCrossfade(getPosition());
+    }
+
+    /**
+     * Schedules the crossfade into the next song, if enabled
+     *
+     * @param position The current position in the song (in ms)
+     */
+    protected void scheduleCrossfade(int position) {
+        scheduleCrossfade(position, 0);
+    }
+
+    /**
+     * Schedules the crossfade into the next song from the player's length;
+     * retries a few times while the length is not known yet, then gives
+     * up on the crossfade for this song
+     *
+     * @param position The current position in the song (in ms)
+     * @param attempt How many times the length was found unknown
+     */
+    protected void scheduleCrossfade(int position, int attempt) {
+        mHandler.removeMessages(MSG_CROSSFADE);
+        mHandler.removeMessages(MSG_SCHEDULE_CROSSFADE);
+
+        if (mCrossfadeDuration <= 0 || !mMediaPlayerInitialized || (mState & FLAG_PLAYING) == 0) {
+            return;
+        }
+
+        int length = mMediaPlayer.getDuration();
+        if (length <= 0) {
+            if (attempt < CROSSFADE_LENGTH_ATTEMPTS) {
+                mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_SCHEDULE_CROSSFADE, attempt + 1, 0), CROSSFADE_LENGTH_RETRY_MS);
+            }
+            return;
+        }
+
+        long delay = length - position - mCrossfadeDuration;
+        if (delay > 0) {
+            mHandler.sendEmptyMessageDelayed(MSG_CROSSFADE, delay);
+        }
+    }
+
+    /**
+     * Starts the pre-rolled next song and crossfades into it
+     */
+    protected void startCrossfade() {
+        if (mCrossfadeDuration <= 0 || (mState & FLAG_PLAYING) == 0 || null != mFadingOutPlayer) {
+            return;
+        }
+
+        if (finishAction(mState) == FpTrackTimeline.FINISH_REPEAT_CURRENT || mTimeline.isEndOfQueue()) {
+            return;
+        }
+
+        FpTrack nextSong = getSong(1);
+        if (nextSong == null || !nextSong.path.equals(mPreparedMediaPlayer.getDataSource()) || !mPreparedMediaPlayer.isPrerolled()) {
+            return;
+        }
+
+        // Count this song as played
+        mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_UPDATE_PLAYCOUNTS, mCurrentSong), 2500);
+
+        // Start the successor silently and let the fade engine take over
+        mFadingOutPlayer = mMediaPlayer;
+        mPreparedMediaPlayer.setGain(FpFadeEngine.CHANNEL_FADE, 0.0f);
+        mPreparedMediaPlayer.startHandoff(SystemClock.elapsedRealtime());
+        mFadeEngine.crossfade(mMediaPlayer, mPreparedMediaPlayer, mCrossfadeDuration, mHandler.obtainMessage(MSG_CROSSFADE_DONE));
+        setCurrentSong(+1);
+    }
+
+    /**
+     * Stops the outgoing player of a crossfade, if any
+     */
+    protected void finishCrossfade() {
+        FpMediaPlayer player = mFadingOutPlayer;
+        if (null == player) {
+            return;
+        }
+        mFadingOutPlayer = null;
+        mFadeEngine.cancel(player);
+
+        if (player != mMediaPlayer) {
+            player.reset();
+            triggerGaplessUpdate();
+        } else {
+            // The crossfade did not go through
+            player.setGain(FpFadeEngine.CHANNEL_FADE, 1.0f);
+        }
+    }
+
+    /**
+     * Returns the silence gap (in ms) measured at the last gapless transition,
+     * -1 if no transition happened yet
+     */
+    public long getLastTransitionGap() {
+        return mLastTransitionGap;
+    }
+
+    /**
+     * Returns the time (in ms) from creation until the service was ready,
+     * -1 if still starting up
+     */
+    public long getTimeToInteractive() {
+        return mTimeToInteractive;
+    }
+
+    /**
+     * Returns the time (in ms) from creation until the first audio was played,
+     * -1 if nothing was played yet
+     */
+    public long getTimeToFirstAudio() {
+        return mTimeToFirstAudio;
+    }
+
     @Override
     public boolean onError(MediaPlayer player, int what, int extra) {
         Log.e(Constants.LOG_TAG, "MediaPlayer error: " + what + ' ' + extra);
+        
+        // Remember the file only if it can not be opened or decoded, not
+        // for errors that may go away
+        if (what != FpMediaPlayer.MEDIA_ERROR_UNSUPPORTED && what != FpMediaPlayer.MEDIA_ERROR_MALFORMED) {
+            return true;
+        }
+        if (null != mMediaPlayer && player == mMediaPlayer.getPlayer()) {
+            mValidator.markBroken(mMediaPlayer.getDataSource());
+        } else if (null != mPreparedMediaPlayer && player == mPreparedMediaPlayer.getPlayer()) {
+            mValidator.markBroken(mPreparedMediaPlayer.getDataSource());
+        }
         return true;
     }
 
@@ -1228,6 +1653,11 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
 
         @Override
         public void onReceive(Context content, Intent intent) {
+            // Nothing is playing before the startup completes
+            if (!mReady) {
+                return;
+            }
+            
             String action = intent.getAction();
 
             if (AudioManager.ACTION_AUDIO_BECOMING_NOISY.equals(action)) {
@@ -1241,6 +1671,8 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
     }
 
     public void onMediaChange() {
+        mTimeline.onMediaChange();
+
         if (FpUtilsMedia.isSongAvailable(getContentResolver())) {
             if ((mState & FLAG_NO_MEDIA) != 0) {
                 setCurrentSong(0);
@@ -1279,10 +1711,8 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
      */
     protected static final int MSG_IDLE_TIMEOUT = 4;
     /**
-     * Decrease the volume gradually over five seconds, pausing when 0 is
-     * reached.
-     *
-     * arg1 should be the progress in the fade as a percentage, 1-100.
+     * Sent by the FpFadeEngine when the idle fade-out reached silence;
+     * pauses the playback.
      */
     protected static final int MSG_FADE_OUT = 7;
     /**
@@ -1297,6 +1727,11 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
     protected static final int MSG_SKIP_BROKEN_SONG = 15;
     protected static final int MSG_GAPLESS_UPDATE = 16;
     protected static final int MSG_UPDATE_PLAYCOUNTS = 17;
+    protected static final int MSG_CROSSFADE = 18;
+    protected static final int MSG_CROSSFADE_DONE = 19;
+    protected static final int MSG_SCHEDULE_CROSSFADE = 20;
+    protected static final int MSG_STARTUP_PLAYER = 21;
+    protected static final int MSG_STARTUP_QUEUE = 22;
 
     @Override
     public boolean handleMessage(Message message) {
@@ -1325,19 +1760,29 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
 
             case MSG_IDLE_TIMEOUT:
                 if ((mState & FLAG_PLAYING) != 0) {
-                    mHandler.sendMessage(mHandler.obtainMessage(MSG_FADE_OUT, 0));
+                    mIdleFading = true;
+                    mFadeEngine.fadeOut(mMediaPlayer, IDLE_FADE_OUT_MS, FpFadeEngine.CURVE_LINEAR, mHandler.obtainMessage(MSG_FADE_OUT));
                 }
                 break;
             case MSG_FADE_OUT:
-                if (mFadeOut <= 0.0f) {
-                    mIdleStart = SystemClock.elapsedRealtime();
-                    unsetFlag(FLAG_PLAYING);
-                } else {
-                    mFadeOut -= 0.01f;
-                    mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_FADE_OUT, 0), 50);
-                }
-                refreshVolume();
-
+                mIdleFading = false;
+                mIdleStart = SystemClock.elapsedRealtime();
+                unsetFlag(FLAG_PLAYING);
+                break;
+            case MSG_CROSSFADE:
+                startCrossfade();
+                break;
+            case MSG_SCHEDULE_CROSSFADE:
+                scheduleCrossfade(getPosition(), message.arg1);
+                break;
+            case MSG_CROSSFADE_DONE:
+                finishCrossfade();
+                break;
+            case MSG_STARTUP_PLAYER:
+                startupPlayer();
+                break;
+            case MSG_STARTUP_QUEUE:
+                startupQueue();
                 break;
             case MSG_PROCESS_STATE:
                 processNewState(message.arg1, message.arg2);
@@ -1416,7 +1861,10 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
      */
     public int getAudioSession() {
         // Must not be 'ready' or initialized: the audio session
-        // is set on object creation
+        // is set on object creation, in startup stage 2
+        if (!mPlayerReady) {
+            return 0;
+        }
         return mMediaPlayer.getAudioSessionId();
     }
 
@@ -1436,6 +1884,7 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
         Log.i(Constants.LOG_TAG, "Seek to " + String.valueOf(progress) + ", duration = " + String.valueOf(duration) + ", position = " + position);
         
         mMediaPlayer.seekTo((int) position);
+        scheduleCrossfade((int) position);
     }
 
     @Override
@@ -1456,36 +1905,31 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
     }
 
     /**
-     * Delete all the songs in the given media set. Should be run on a
+     * Delete all the songs in the given media set with the given deleter,
+     * which reports the progress and may be cancelled. Should be run on a
      * background thread.
      *
      * @param type One of the TYPE_* constants, excluding playlists.
      * @param id The MediaStore id of the media to delete.
+     * @param deleter The deletion pipeline to use
      *
      * @return The number of songs deleted.
      */
-    public int deleteMedia(int type, long id) {
-        int count = 0;
-
-        ContentResolver resolver = getContentResolver();
-        String[] projection = new String[] {MediaStore.MediaColumns._ID, MediaStore.Audio.Media.DATA};
-        Cursor cursor = FpUtilsMedia.buildQuery(type, id, projection, null).runQuery(resolver);
-
-        if (cursor != null) {
-            while (cursor.moveToNext()) {
-                if (new File(cursor.getString(1)).delete()) {
-                    long songId = cursor.getLong(0);
-                    String where = MediaStore.MediaColumns._ID + '=' + songId;
-                    resolver.delete(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, where, null);
-                    mTimeline.removeSong(songId);
-                    ++count;
-                }
-            }
+    public int deleteMedia(int type, long id, FpMediaDeleter deleter) {
+        long[] deleted = deleter.deleteMedia(type, id);
 
-            cursor.close();
-        }
+        // Drop them from the timeline at once
+        removeSongs(deleted);
+        return deleted.length;
+    }
 
-        return count;
+    /**
+     * Remove the songs with the given ids from the timeline
+     */
+    public void removeSongs(long[] ids) {
+        if (ids.length > 0) {
+            mTimeline.removeSongs(ids);
+        }
     }
 
     /**
@@ -1533,9 +1977,19 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
             mHandler.sendEmptyMessageDelayed(MSG_IDLE_TIMEOUT, mIdleTimeout * 1000);
         }
 
-        if (mFadeOut != 1.0f) {
-            mFadeOut = 1.0f;
-            refreshVolume();
+        // The players are not created yet, or released
+        if (!mPlayerReady) {
+            return;
+        }
+
+        if (mIdleFading) {
+            mIdleFading = false;
+            mFadeEngine.cancel(mMediaPlayer);
+        }
+        
+        // Restore the volume lowered by the idle fade-out
+        if (null == mFadingOutPlayer && mMediaPlayer.getGain(FpFadeEngine.CHANNEL_FADE) != 1.0f) {
+            mMediaPlayer.setGain(FpFadeEngine.CHANNEL_FADE, 1.0f);
         }
 
         long idleStart = mIdleStart;
@@ -1553,7 +2007,24 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
      * @param query The query to run.
      */
     public void runQuery(FpUtilsMedia.QueryTask query) {
-        int count = mTimeline.addSongs(this, query);
+        Runnable onFirstSong = null;
+        switch (query.mode) {
+            case FpTrackTimeline.MODE_PLAY:
+            case FpTrackTimeline.MODE_PLAY_POS_FIRST:
+            case FpTrackTimeline.MODE_PLAY_ID_FIRST:
+                // Start playing while the rest of the songs are added
+                onFirstSong = new Runnable() {
+                    @Override
+                    public void run() {
+                        if ((mState & FLAG_PLAYING) == 0) {
+                            setFlag(FLAG_PLAYING);
+                        }
+                    }
+                };
+                break;
+        }
+
+        int count = mTimeline.addSongs(this, query, onFirstSong);
 
         int text;
 
@@ -1562,9 +2033,6 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
             case FpTrackTimeline.MODE_PLAY_POS_FIRST:
             case FpTrackTimeline.MODE_PLAY_ID_FIRST:
                 text = R.plurals.fp_plurals_song_playing;
-                if (count != 0 && (mState & FLAG_PLAYING) == 0) {
-                    setFlag(FLAG_PLAYING);
-                }
                 break;
 
             case FpTrackTimeline.MODE_FLUSH_AND_PLAY_NEXT:
@@ -1654,7 +2122,7 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
     }
 
     @Override
-    public void timelineChanged() {
+    public void timelineChanged(FpTrackTimelineDiff diff) {
         mHandler.removeMessages(MSG_SAVE_STATE);
         mHandler.sendEmptyMessageDelayed(MSG_SAVE_STATE, SAVE_STATE_DELAY);
 
@@ -1666,7 +2134,7 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
 
         ArrayList<FpTrackTimelineCallback> list = sCallbacks;
         for (int i = list.size(); --i != -1;) {
-            list.get(i).onTimelineChanged();
+            list.get(i).onTimelineChanged(diff);
         }
 
     }
@@ -1694,12 +2162,12 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
         if (sInstance == null) {
             context.startService(new Intent(context, FpServiceRendering.class));
 
-            while (sInstance == null) {
-                try {
-                    synchronized (sWait) {
+            synchronized (sWait) {
+                while (sInstance == null) {
+                    try {
                         sWait.wait();
+                    } catch (InterruptedException ignored) {
                     }
-                } catch (InterruptedException ignored) {
                 }
             }
         }
@@ -1707,6 +2175,27 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
         return sInstance;
     }
 
+    /**
+     * Run the callback once the FpServiceRendering instance is ready, starting
+     * the service if needed. Does not block: the callback runs right away if
+     * the service is ready, later on the main thread otherwise.
+     */
+    public static void whenReady(Context context, ReadyCallback callback) {
+        FpServiceRendering service;
+        synchronized (sWait) {
+            service = sInstance;
+            if (null == service) {
+                sReadyCallbacks.add(callback);
+            }
+        }
+
+        if (null == service) {
+            context.startService(new Intent(context, FpServiceRendering.class));
+        } else {
+            callback.onServiceReady(service);
+        }
+    }
+
     /**
      * Returns true if a FpServiceRendering instance is active.
      */
@@ -1741,15 +2230,13 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
     public int loadState() {
         int state = 0;
 
-        try {
-            DataInputStream in = new DataInputStream(openFileInput(STATUS_FILE));
-            mPendingSeek = in.readInt();
-            mPendingSeekSong = in.readLong();
-            mTimeline.readState(in);
-            state |= mTimeline.getShuffleMode() << SHIFT_SHUFFLE;
-            state |= mTimeline.getFinishAction() << SHIFT_FINISH;
-            in.close();
-        } catch (Exception e) {}
+        // Snapshot and journal replay
+        FpTrackJournal.State saved = mJournal.load();
+        mPendingSeek = saved.pendingSeek;
+        mPendingSeekSong = saved.pendingSeekSong;
+        mTimeline.restoreState(saved.songs, saved.position, saved.finishAction, saved.shuffleMode);
+        state |= mTimeline.getShuffleMode() << SHIFT_SHUFFLE;
+        state |= mTimeline.getFinishAction() << SHIFT_FINISH;
 
         return state;
     }
@@ -1761,16 +2248,9 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
      * MediaPlayer position or 0.
      */
     public void saveState(int pendingSeek) {
-        try {
-            DataOutputStream out = new DataOutputStream(openFileOutput(STATUS_FILE, 0));
-            FpTrack song = mCurrentSong;
-            out.writeInt(pendingSeek);
-            out.writeLong(song == null ? -1 : song.id);
-            mTimeline.writeState(out);
-            out.close();
-        } catch (IOException e) {
-            Log.w(Constants.LOG_TAG, "Failed to save state", e);
-        }
+        // Only the changes since the last save are written, most of the time
+        FpTrack song = mCurrentSong;
+        mJournal.save(mTimeline, pendingSeek, song == null ? -1 : song.id);
     }
 
     /**
@@ -2130,6 +2610,7 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
                     mPendingSeekSong = mCurrentSong.id;
                     mPendingSeek = getPosition() + (1000 * mSeekStep);
                     mMediaPlayer.seekTo(mPendingSeek);
+                    scheduleCrossfade(mPendingSeek);
                 }
                 break;
                 
@@ -2141,6 +2622,7 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
                         mPendingSeek = 1;
                     }
                     mMediaPlayer.seekTo(mPendingSeek);
+                    scheduleCrossfade(mPendingSeek);
                 }
                 break;
                 
@@ -2170,6 +2652,13 @@ public final class FpServiceRendering extends Service implements Handler.Callbac
         return mTimeline.getLength();
     }
 
+    /**
+     * Returns an immutable snapshot of the song timeline
+     */
+    public FpTrackTimelineSnapshot getTimelineSnapshot() {
+        return mTimeline.getSnapshot();
+    }
+
     /**
      * Returns 'FpTrack' with given id from timeline
      */
@@ -12,7 +12,7 @@
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
  * See the License for the specific language governing permissions and
  * limitations under the License.
- * 
+ *
  * Redistributions of files must retain the above copyright notice.
  */
 package com.fairplayer;
@@ -21,42 +21,114 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
 import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 
+/**
+ * Reads the current song ahead of the decoder so it ends up in the page
+ * cache, then warms the head of the next song before the transition.
+ *
+ * Reads are paced from the bitrate of the song and the measured latency
+ * of the storage, and go through a FileChannel into a direct buffer so
+ * no data is copied into the Java heap.
+ */
 class FpThreadPreloader implements Handler.Callback {
 
     /**
-     * How many bytes we are going to read per run
+     * Smallest and largest read, in bytes
      */
-    private static final int BYTES_PER_READ = 32768;
+    private static final int MIN_BYTES_PER_READ = 16384;
+    private static final int MAX_BYTES_PER_READ = 262144;
     /**
-     * How many milliseconds to wait between reads. 125*32768 = ~256kb/s. This
-     * should be fast enough for flac files
+     * Milliseconds between two reads, on fast storage
      */
     private static final int MS_DELAY_PER_READ = 125;
+    /**
+     * How much faster than the song's bitrate to read
+     */
+    private static final int READ_RATE_FACTOR = 4;
+    /**
+     * Assumed bitrate (bytes/s) when the duration is unknown; ~320kb/s
+     */
+    private static final int DEFAULT_BYTES_PER_SECOND = 40960;
+    /**
+     * Seconds of the next song to pre-read
+     */
+    private static final int NEXT_HEAD_SECONDS = 10;
+    /**
+     * Reads slower than this (in ms) mean the storage is slow; use larger reads
+     */
+    private static final int SLOW_READ_MS = 20;
+    /**
+     * Debounce (in ms) for quick song changes
+     */
+    private static final int MS_DELAY_SET_PATH = 250;
+    /**
+     * How many fully read files to remember
+     */
+    private static final int MAX_CACHED_PATHS = 8;
+
+    /**
+     * A readahead request
+     */
+    private static class Request {
+        String path;
+        long duration;
+        String nextPath;
+        long nextDuration;
+    }
+
     /**
      * Our message handler
      */
     private Handler mHandler;
     /**
-     * The global (current) file input stream
+     * The channel of the file being read
      */
-    private FileInputStream mFis;
+    private FileChannel mChannel;
     /**
-     * The filesystem path used to create the current mFis
+     * The filesystem path used to create the current mChannel
      */
     private String mPath;
     /**
-     * Scratch space to read junk data
+     * The current request
+     */
+    private Request mRequest;
+    /**
+     * Read offset and the offset to stop at
+     */
+    private long mOffset;
+    private long mLimit;
+    /**
+     * Bitrate of the file being read, in bytes per second
+     */
+    private long mBytesPerSecond;
+    /**
+     * Moving average of the read latency, in ms
+     */
+    private long mLatency;
+    /**
+     * True while pre-reading the head of the next song
+     */
+    private boolean mReadingNext;
+    /**
+     * Native scratch buffer; the data read is discarded
+     */
+    private final ByteBuffer mScratch;
+    /**
+     * Files already read (completely or up to the requested head)
      */
-    private byte[] mScratch;
+    private final LinkedHashSet<String> mCachedPaths = new LinkedHashSet<String>();
 
     public FpThreadPreloader() {
-        mScratch = new byte[BYTES_PER_READ];
+        mScratch = ByteBuffer.allocateDirect(MAX_BYTES_PER_READ);
         HandlerThread handlerThread = new HandlerThread(FpThreadPreloader.class.getSimpleName(), Process.THREAD_PRIORITY_LOWEST);
         handlerThread.start();
         mHandler = new Handler(handlerThread.getLooper(), this);
@@ -75,60 +147,97 @@ class FpThreadPreloader implements Handler.Callback {
      * the currently open file
      *
      * @param path The path to read ahead
+     * @param duration The duration of the song (in ms), 0 if unknown
+     * @param nextPath The path of the next song, may be null
+     * @param nextDuration The duration of the next song (in ms), 0 if unknown
      */
-    public void setSource(String path) {
-        pause(); // cancell all in-flight rpc's
-        mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_SET_PATH, path), 1000);
+    public void setSource(String path, long duration, String nextPath, long nextDuration) {
+        Request request = new Request();
+        request.path = path;
+        request.duration = duration;
+        request.nextPath = nextPath;
+        request.nextDuration = nextDuration;
+
+        pause(); // cancel all in-flight rpc's
+        mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_SET_PATH, request), MS_DELAY_SET_PATH);
+    }
+
+    /**
+     * Stops the readahead, closes the file and ends the thread; the
+     * preloader can not be used afterwards
+     */
+    public void quit() {
+        pause();
+        mHandler.sendEmptyMessage(MSG_QUIT);
     }
 
     private static final int MSG_SET_PATH = 1;
     private static final int MSG_READ_CHUNK = 2;
+    private static final int MSG_QUIT = 3;
 
     @Override
     public boolean handleMessage(Message message) {
         switch (message.what) {
             case MSG_SET_PATH: {
-                String path = (String) message.obj;
-
-                if (mFis != null && mPath.equals(path) == false) {
-                    // current file does not match requested one: clean it
-                    try {
-                        mFis.close();
-                    } catch (IOException e) {
-                        Log.e(Constants.LOG_TAG, "Failed to close file: " + e);
-                    }
-                    mFis = null;
-                    mPath = null;
-                }
+                mRequest = (Request) message.obj;
 
-                if (mFis == null) {
-                    // need to open new input stream
-                    try {
-                        FileInputStream fis = new FileInputStream(path);
-                        mFis = fis;
-                        mPath = path;
-                    } catch (FileNotFoundException e) {
-                        Log.e(Constants.LOG_TAG, "Failed to open file " + path + ": " + e);
-                    }
+                // Resume the current song, or go on with the next one
+                if (!open(mRequest.path, mRequest.duration, false)) {
+                    openNext();
                 }
 
-                if (mFis != null) {
+                if (mChannel != null) {
                     mHandler.sendEmptyMessage(MSG_READ_CHUNK);
                 }
                 break;
             }
             case MSG_READ_CHUNK: {
+                if (mChannel == null) {
+                    break;
+                }
+
+                // Read bigger chunks on slow storage to amortize the latency
+                int size = (int) (mBytesPerSecond * READ_RATE_FACTOR * MS_DELAY_PER_READ / 1000);
+                if (mLatency > SLOW_READ_MS) {
+                    size *= 2;
+                }
+                size = (int) Math.min(Math.max(MIN_BYTES_PER_READ, size), Math.min(MAX_BYTES_PER_READ, mLimit - mOffset));
+
                 int bytesRead = -1;
+                long start = SystemClock.uptimeMillis();
                 try {
-                    bytesRead = mFis.read(mScratch);
+                    mScratch.clear();
+                    mScratch.limit(size);
+                    bytesRead = mChannel.read(mScratch, mOffset);
                 } catch (IOException e) {
-                    // fs error or eof: stop in any case
+                    // fs error: stop in any case
+                }
+                long latency = SystemClock.uptimeMillis() - start;
+                mLatency = (mLatency * 3 + latency) / 4;
+
+                if (bytesRead > 0) {
+                    mOffset += bytesRead;
                 }
-                if (bytesRead >= 0) {
-                    mHandler.sendEmptyMessageDelayed(MSG_READ_CHUNK, MS_DELAY_PER_READ);
+
+                if (bytesRead > 0 && mOffset < mLimit) {
+                    // Keep the requested rate, the read itself took part of the interval
+                    mHandler.sendEmptyMessageDelayed(MSG_READ_CHUNK, Math.max(0, MS_DELAY_PER_READ - latency));
                 } else {
                     Log.d(Constants.LOG_TAG, "Readahead for " + mPath + " finished");
+                    markCached(mPath);
+                    close();
+
+                    // Warm the head of the next song
+                    if (!mReadingNext && openNext()) {
+                        mHandler.sendEmptyMessage(MSG_READ_CHUNK);
+                    }
                 }
+                break;
+            }
+            case MSG_QUIT: {
+                close();
+                mHandler.getLooper().quit();
+                break;
             }
             default: {
                 break;
@@ -137,4 +246,99 @@ class FpThreadPreloader implements Handler.Callback {
         return true;
     }
 
-}
\ No newline at end of file
+    /**
+     * Open the next song of the current request, reading only its head
+     *
+     * @return True if there is something left to read
+     */
+    private boolean openNext() {
+        if (null == mRequest || null == mRequest.nextPath) {
+            return false;
+        }
+        return open(mRequest.nextPath, mRequest.nextDuration, true);
+    }
+
+    /**
+     * Open a file for reading, resuming if it is the file already open
+     *
+     * @return True if there is something left to read
+     */
+    private boolean open(String path, long duration, boolean headOnly) {
+        if (null == path || mCachedPaths.contains(path)) {
+            close();
+            return false;
+        }
+
+        if (mChannel != null && path.equals(mPath) && headOnly == mReadingNext) {
+            return mOffset < mLimit;
+        }
+
+        // Keep the offset when the next song becomes the current one
+        long offset = path.equals(mPath) ? mOffset : 0;
+        close();
+
+        FileInputStream stream = null;
+        try {
+            stream = new FileInputStream(path);
+            FileChannel channel = stream.getChannel();
+            long size = channel.size();
+            stream = null;
+
+            mChannel = channel;
+            mPath = path;
+            mReadingNext = headOnly;
+            mBytesPerSecond = duration > 0 ? Math.max(1, size * 1000 / duration) : DEFAULT_BYTES_PER_SECOND;
+            mLimit = headOnly ? Math.min(size, mBytesPerSecond * NEXT_HEAD_SECONDS) : size;
+            mOffset = offset;
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG, "Failed to open file " + path + ": " + e);
+            return false;
+        } finally {
+            // Only set if the channel was not kept
+            if (null != stream) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+        return mOffset < mLimit;
+    }
+
+    /**
+     * Close the current file
+     */
+    private void close() {
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                Log.e(Constants.LOG_TAG, "Failed to close file: " + e);
+            }
+        }
+        mChannel = null;
+        mPath = null;
+        mOffset = 0;
+        mLimit = 0;
+    }
+
+    /**
+     * Remember a file that was read, so it is not read again
+     */
+    private void markCached(String path) {
+        // A head-only read does not cache the whole file
+        if (null == path || mReadingNext) {
+            return;
+        }
+        mCachedPaths.remove(path);
+        mCachedPaths.add(path);
+
+        Iterator<String> it = mCachedPaths.iterator();
+        while (mCachedPaths.size() > MAX_CACHED_PATHS && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+}
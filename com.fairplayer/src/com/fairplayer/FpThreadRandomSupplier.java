@@ -0,0 +1,207 @@
+/**
+ * Copyright 2016 Mark Jivko https://markjivko.com
+ *
+ * Licensed under the GNU General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://gnu.org/licenses/gpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Redistributions of files must retain the above copyright notice.
+ */
+package com.fairplayer;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+
+import java.util.ArrayList;
+
+/**
+ * Supplies random songs for FpTrackTimeline#FINISH_RANDOM. Songs are
+ * fetched in batches, with a single MediaStore query per batch, on a
+ * background thread and kept in a small ring buffer, so taking the next
+ * random song never waits on the content provider. A listener is told
+ * whenever a batch is ready, so a caller that found the buffer empty can
+ * try again.
+ */
+class FpThreadRandomSupplier implements Handler.Callback {
+
+    /**
+     * Songs fetched by one query
+     */
+    private static final int BATCH_SIZE = 8;
+    /**
+     * Ring buffer capacity
+     */
+    private static final int CAPACITY = 16;
+    /**
+     * Refill when fewer songs are ready
+     */
+    private static final int LOW_WATER = 4;
+
+    /**
+     * Our message handler, created on first use
+     */
+    private Handler mHandler;
+    /**
+     * The resolver to query
+     */
+    private final ContentResolver mResolver;
+    /**
+     * Ready songs; mHead is the oldest, guarded by mRing
+     */
+    private final FpTrack[] mRing = new FpTrack[CAPACITY];
+    private int mHead;
+    private int mCount;
+    /**
+     * Incremented by clear(), so batches fetched before are dropped
+     */
+    private int mGeneration;
+    /**
+     * Run on the supplier thread once new songs are ready
+     */
+    private final Runnable mOnReady;
+    /**
+     * Set by quit(), guarded by mRing
+     */
+    private boolean mQuit;
+
+    public FpThreadRandomSupplier(Context context, Runnable onReady) {
+        mResolver = context.getContentResolver();
+        mOnReady = onReady;
+    }
+
+    /**
+     * Take the next ready song; never blocks
+     *
+     * @return A populated song, or null if none is ready yet
+     */
+    public FpTrack poll() {
+        FpTrack song = null;
+        int count;
+        synchronized (mRing) {
+            if (mCount > 0) {
+                song = mRing[mHead];
+                mRing[mHead] = null;
+                mHead = (mHead + 1) % CAPACITY;
+                mCount--;
+            }
+            count = mCount;
+        }
+
+        if (count < LOW_WATER) {
+            prefetch();
+        }
+        return song;
+    }
+
+    /**
+     * Fill the ring buffer in the background
+     */
+    public void prefetch() {
+        Handler handler;
+        synchronized (mRing) {
+            if (mQuit) {
+                return;
+            }
+            if (mHandler == null) {
+                HandlerThread handlerThread = new HandlerThread(FpThreadRandomSupplier.class.getSimpleName(), Process.THREAD_PRIORITY_BACKGROUND);
+                handlerThread.start();
+                mHandler = new Handler(handlerThread.getLooper(), this);
+            }
+            handler = mHandler;
+        }
+
+        if (!handler.hasMessages(MSG_FILL)) {
+            handler.sendEmptyMessage(MSG_FILL);
+        }
+    }
+
+    /**
+     * Stop the thread and drop the ready songs; the supplier can not be
+     * used afterwards
+     */
+    public void quit() {
+        synchronized (mRing) {
+            mQuit = true;
+            if (mHandler != null) {
+                mHandler.removeMessages(MSG_FILL);
+                mHandler.getLooper().quit();
+                mHandler = null;
+            }
+        }
+        clear();
+    }
+
+    /**
+     * Drop the ready songs; the library changed
+     */
+    public void clear() {
+        synchronized (mRing) {
+            for (int i = 0; i != CAPACITY; ++i) {
+                mRing[i] = null;
+            }
+            mHead = 0;
+            mCount = 0;
+            mGeneration++;
+        }
+    }
+
+    private static final int MSG_FILL = 1;
+
+    @Override
+    public boolean handleMessage(Message message) {
+        switch (message.what) {
+            case MSG_FILL: {
+                while (true) {
+                    int generation;
+                    synchronized (mRing) {
+                        if (mCount > CAPACITY - BATCH_SIZE) {
+                            break;
+                        }
+                        generation = mGeneration;
+                    }
+
+                    ArrayList<FpTrack> songs = FpUtilsMedia.randomSongs(mResolver, BATCH_SIZE);
+                    if (songs.isEmpty()) {
+                        break;
+                    }
+
+                    synchronized (mRing) {
+                        if (generation != mGeneration) {
+                            continue;
+                        }
+                        for (FpTrack song : songs) {
+                            if (mCount == CAPACITY) {
+                                break;
+                            }
+                            mRing[(mHead + mCount) % CAPACITY] = song;
+                            mCount++;
+                        }
+                    }
+
+                    // Outside of the lock, the listener takes its own
+                    if (null != mOnReady) {
+                        mOnReady.run();
+                    }
+                }
+                break;
+            }
+            default: {
+                break;
+            }
+        }
+        return true;
+    }
+
+}
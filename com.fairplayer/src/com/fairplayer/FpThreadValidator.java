@@ -0,0 +1,203 @@
+/**
+ * Copyright 2016 Mark Jivko https://markjivko.com
+ *
+ * Licensed under the GNU General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://gnu.org/licenses/gpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Redistributions of files must retain the above copyright notice.
+ */
+package com.fairplayer;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+import org.videolan.libvlc.LibVLC;
+import org.videolan.libvlc.Media;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Checks the upcoming timeline entries ahead of playback: the file must
+ * exist, be readable and contain at least one track. Results are cached
+ * by path and modification time, so the same queue is checked only once.
+ */
+class FpThreadValidator implements Handler.Callback {
+
+    /**
+     * How many upcoming timeline entries to check
+     */
+    public static final int VALIDATE_COUNT = 8;
+    /**
+     * Maximum number of cached results
+     */
+    private static final int MAX_RESULTS = 256;
+
+    /**
+     * Modification time of a file marked broken until the validator
+     * thread reads it
+     */
+    private static final long MTIME_UNKNOWN = Long.MIN_VALUE;
+
+    /**
+     * A cached result
+     */
+    private static class Result {
+        long mtime;
+        boolean valid;
+    }
+
+    /**
+     * Our message handler
+     */
+    private Handler mHandler;
+    /**
+     * Results by path, least recently used first
+     */
+    private final LinkedHashMap<String, Result> mResults = new LinkedHashMap<String, Result>(32, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+            return size() > MAX_RESULTS;
+        }
+    };
+
+    public FpThreadValidator() {
+        HandlerThread handlerThread = new HandlerThread(FpThreadValidator.class.getSimpleName(), Process.THREAD_PRIORITY_LOWEST);
+        handlerThread.start();
+        mHandler = new Handler(handlerThread.getLooper(), this);
+    }
+
+    /**
+     * Check the paths in the background, replacing any pending request
+     *
+     * @param paths The paths of the upcoming songs, null items are ignored
+     */
+    public void validate(String[] paths) {
+        mHandler.removeMessages(MSG_VALIDATE);
+        mHandler.obtainMessage(MSG_VALIDATE, paths).sendToTarget();
+    }
+
+    /**
+     * Returns true if the path is known to be unplayable; reads the cached
+     * result only, never blocks. A changed file is checked again by the
+     * validator thread when it comes up.
+     */
+    public boolean isBroken(String path) {
+        Result result;
+        synchronized (mResults) {
+            result = mResults.get(path);
+        }
+        return null != result && !result.valid;
+    }
+
+    /**
+     * Record a path that failed to play; its modification time is read on
+     * the validator thread
+     */
+    public void markBroken(String path) {
+        if (null == path) {
+            return;
+        }
+        store(path, MTIME_UNKNOWN, false);
+        mHandler.obtainMessage(MSG_MARK_BROKEN, path).sendToTarget();
+    }
+
+    /**
+     * Stop the thread; the validator can not be used afterwards
+     */
+    public void quit() {
+        mHandler.removeMessages(MSG_VALIDATE);
+        mHandler.removeMessages(MSG_MARK_BROKEN);
+        mHandler.getLooper().quit();
+    }
+
+    private static final int MSG_VALIDATE = 1;
+    private static final int MSG_MARK_BROKEN = 2;
+
+    @Override
+    public boolean handleMessage(Message message) {
+        switch (message.what) {
+            case MSG_VALIDATE: {
+                String[] paths = (String[]) message.obj;
+                for (String path : paths) {
+                    // A newer request came in
+                    if (mHandler.hasMessages(MSG_VALIDATE)) {
+                        break;
+                    }
+                    if (null == path) {
+                        continue;
+                    }
+
+                    // Already checked, and the file did not change since
+                    File file = new File(path);
+                    long mtime = file.lastModified();
+                    synchronized (mResults) {
+                        Result result = mResults.get(path);
+                        if (null != result && (result.mtime == mtime || result.mtime == MTIME_UNKNOWN)) {
+                            continue;
+                        }
+                    }
+
+                    boolean valid = file.isFile() && file.canRead() && canParse(path);
+                    if (!valid) {
+                        Log.d(Constants.LOG_TAG, "Invalid track: " + path);
+                    }
+                    store(path, mtime, valid);
+                }
+                break;
+            }
+            case MSG_MARK_BROKEN: {
+                String path = (String) message.obj;
+                store(path, new File(path).lastModified(), false);
+                break;
+            }
+            default: {
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns false if the media was parsed and has no tracks
+     */
+    private boolean canParse(String path) {
+        LibVLC libVLC = FpMediaRuntime.getLibVLC();
+        if (null == libVLC) {
+            return true;
+        }
+
+        Media media = new Media(libVLC, path);
+        try {
+            return !media.parse(Media.Parse.ParseLocal) || media.getTrackCount() > 0;
+        } finally {
+            media.release();
+        }
+    }
+
+    /**
+     * Store a result
+     */
+    private void store(String path, long mtime, boolean valid) {
+        Result result = new Result();
+        result.mtime = mtime;
+        result.valid = valid;
+        synchronized (mResults) {
+            mResults.put(path, result);
+        }
+    }
+
+}
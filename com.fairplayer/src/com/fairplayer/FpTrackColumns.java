@@ -0,0 +1,508 @@
+/**
+ * Copyright 2016 Mark Jivko https://markjivko.com
+ *
+ * Licensed under the GNU General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://gnu.org/licenses/gpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Redistributions of files must retain the above copyright notice.
+ */
+package com.fairplayer;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import android.database.Cursor;
+
+/**
+ * Metadata of the songs of a timeline, one row per MediaStore id, kept in
+ * parallel primitive arrays. Album and artist names, and the folders of
+ * the paths, are stored once in a string table and referenced by index;
+ * titles and file names are UTF-8 bytes in a single array.
+ *
+ * Rows are reference counted by the queue: a row lives while the queue
+ * holds an entry with its id, a name while a row uses it. Frozen copies of
+ * the queue share the rows without counting; their entries read as
+ * unpopulated once the row is gone.
+ *
+ * All methods are synchronized and short; the MediaStore is never queried
+ * under the lock.
+ */
+final class FpTrackColumns {
+
+    /**
+     * Row states
+     */
+    static final int STATE_EMPTY = 0;
+    static final int STATE_FILLED = 1;
+    static final int STATE_MISSING = 2;
+
+    /**
+     * Initial capacity of the rows and of the string table
+     */
+    private static final int INITIAL_CAPACITY = 16;
+    /**
+     * Initial capacity of the text, in bytes
+     */
+    private static final int INITIAL_TEXT_CAPACITY = 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Row of each slot of the open addressing table of ids plus one, 0 for
+     * an empty slot; the id is read from the row
+     */
+    private int[] mSlots;
+
+    /**
+     * Row columns
+     */
+    private long[] mIds;
+    private long[] mAlbumIds;
+    private long[] mArtistIds;
+    private long[] mDurations;
+    private int[] mTrackNumbers;
+    private int[] mAlbums;
+    private int[] mArtists;
+    private int[] mFolders;
+    private byte[] mStates;
+    /**
+     * Start of the title of each row in mText, followed by the file name;
+     * their lengths in bytes, -1 for none
+     */
+    private int[] mTextStarts;
+    private int[] mTitleLengths;
+    private int[] mNameLengths;
+    /**
+     * References to each row; for a freed row, the next freed row
+     */
+    private int[] mRefs;
+    /**
+     * Rows in use or freed, and the first freed row, -1 for none
+     */
+    private int mRowCount;
+    private int mFreeRow;
+    /**
+     * Number of rows in use, and of rows in STATE_MISSING
+     */
+    private int mLive;
+    private int mMissing;
+
+    /**
+     * Titles and file names; mTextEnd is the end of the last one, mTextUsed
+     * the bytes still used by a row
+     */
+    private byte[] mText;
+    private int mTextEnd;
+    private int mTextUsed;
+
+    /**
+     * Names, their reference counts and indices; the count of a freed name
+     * is the next freed name, mFreeString the first one
+     */
+    private String[] mStrings;
+    private int[] mStringRefs;
+    private int mStringCount;
+    private int mFreeString;
+    private final HashMap<String, Integer> mStringIds = new HashMap<String, Integer>();
+
+    FpTrackColumns() {
+        reset();
+    }
+
+    /**
+     * Adds a reference to the row of an id, creating an empty row if needed
+     */
+    synchronized void retain(long id) {
+        int row = find(id);
+        if (row == -1) {
+            row = newRow(id);
+        }
+        mRefs[row]++;
+    }
+
+    /**
+     * Drops a reference to the row of an id; the row goes with the last one
+     */
+    synchronized void release(long id) {
+        int row = find(id);
+        if (row != -1 && --mRefs[row] == 0) {
+            freeRow(row);
+        }
+    }
+
+    /**
+     * Returns one of STATE_*; STATE_EMPTY if the id has no row
+     */
+    synchronized int getState(long id) {
+        int row = find(id);
+        return row == -1 ? STATE_EMPTY : mStates[row];
+    }
+
+    /**
+     * Returns true if a row was not found in the MediaStore
+     */
+    synchronized boolean hasMissing() {
+        return mMissing != 0;
+    }
+
+    /**
+     * Marks the row of an id as not found in the MediaStore, unless it was
+     * populated in the meantime
+     */
+    synchronized void setMissing(long id) {
+        int row = find(id);
+        if (row != -1 && mStates[row] == STATE_EMPTY) {
+            mStates[row] = STATE_MISSING;
+            mMissing++;
+        }
+    }
+
+    /**
+     * Populates the row of the id read from the cursor, if it has one; a
+     * row without a path stays empty
+     *
+     * @param cursor Cursor queried with FpTrack.FILLED_PROJECTION
+     */
+    synchronized void fill(Cursor cursor) {
+        int row = find(cursor.getLong(0));
+        if (row == -1 || mStates[row] == STATE_FILLED || cursor.getString(1) == null) {
+            return;
+        }
+        setRow(row, cursor.getString(1), cursor.getString(2), cursor.getString(3), cursor.getString(4),
+            cursor.getLong(5), cursor.getLong(6), cursor.getLong(7), cursor.getInt(8));
+    }
+
+    /**
+     * Populates the row of a populated song, if it has one
+     */
+    synchronized void fill(FpTrack song) {
+        int row = find(song.id);
+        if (row == -1 || mStates[row] == STATE_FILLED) {
+            return;
+        }
+        setRow(row, song.path, song.title, song.album, song.artist,
+            song.albumId, song.artistId, song.duration, song.trackNumber);
+    }
+
+    /**
+     * Copies the metadata of the row of the song's id into the song
+     *
+     * @return False if the row is not populated; the song is left as is
+     */
+    synchronized boolean copyTo(FpTrack song) {
+        int row = find(song.id);
+        if (row == -1 || mStates[row] != STATE_FILLED) {
+            return false;
+        }
+        String folder = mFolders[row] == -1 ? null : mStrings[mFolders[row]];
+        int start = mTextStarts[row];
+        int titleLength = Math.max(0, mTitleLengths[row]);
+        String name = getText(start + titleLength, mNameLengths[row]);
+        song.title = getText(start, mTitleLengths[row]);
+        song.album = mAlbums[row] == -1 ? null : mStrings[mAlbums[row]];
+        song.artist = mArtists[row] == -1 ? null : mStrings[mArtists[row]];
+        song.albumId = mAlbumIds[row];
+        song.artistId = mArtistIds[row];
+        song.duration = mDurations[row];
+        song.trackNumber = mTrackNumbers[row];
+        song.path = folder == null ? name : folder + name;
+        return true;
+    }
+
+    /**
+     * Reads the album ids and track numbers of the given ids, 0 for the
+     * unpopulated ones
+     */
+    synchronized void getAlbumOrder(long[] ids, long[] albumIds, int[] trackNumbers) {
+        for (int i = 0; i != ids.length; ++i) {
+            int row = find(ids[i]);
+            if (row != -1 && mStates[row] == STATE_FILLED) {
+                albumIds[i] = mAlbumIds[row];
+                trackNumbers[i] = mTrackNumbers[row];
+            }
+        }
+    }
+
+    /**
+     * Writes the metadata into a row
+     */
+    private void setRow(int row, String path, String title, String album, String artist, long albumId, long artistId, long duration, int trackNumber) {
+        if (mStates[row] == STATE_MISSING) {
+            mMissing--;
+        }
+        mAlbums[row] = acquireString(album);
+        mArtists[row] = acquireString(artist);
+        mAlbumIds[row] = albumId;
+        mArtistIds[row] = artistId;
+        mDurations[row] = duration;
+        mTrackNumbers[row] = trackNumber;
+
+        // Songs share their folder
+        int slash = path.lastIndexOf('/');
+        mFolders[row] = slash == -1 ? -1 : acquireString(path.substring(0, slash + 1));
+
+        byte[] titleBytes = title == null ? null : title.getBytes(UTF8);
+        byte[] nameBytes = path.substring(slash + 1).getBytes(UTF8);
+        int titleLength = titleBytes == null ? 0 : titleBytes.length;
+        ensureText(titleLength + nameBytes.length);
+        mTextStarts[row] = mTextEnd;
+        mTitleLengths[row] = titleBytes == null ? -1 : titleLength;
+        mNameLengths[row] = nameBytes.length;
+        if (titleBytes != null) {
+            System.arraycopy(titleBytes, 0, mText, mTextEnd, titleLength);
+        }
+        System.arraycopy(nameBytes, 0, mText, mTextEnd + titleLength, nameBytes.length);
+        mTextEnd += titleLength + nameBytes.length;
+        mTextUsed += titleLength + nameBytes.length;
+        mStates[row] = STATE_FILLED;
+    }
+
+    /**
+     * Creates an empty row for the id
+     */
+    private int newRow(long id) {
+        int row;
+        if (mFreeRow != -1) {
+            row = mFreeRow;
+            mFreeRow = mRefs[row];
+        } else {
+            if (mRowCount == mIds.length) {
+                growRows(mRowCount + (mRowCount >> 1));
+            }
+            row = mRowCount++;
+        }
+        mIds[row] = id;
+        mAlbums[row] = -1;
+        mArtists[row] = -1;
+        mFolders[row] = -1;
+        mTitleLengths[row] = -1;
+        mNameLengths[row] = -1;
+        mRefs[row] = 0;
+        mStates[row] = STATE_EMPTY;
+        mLive++;
+
+        // Keep the table at most half full
+        if (mLive * 2 > mSlots.length) {
+            rehash(mSlots.length * 2);
+        }
+        mSlots[slot(id)] = row + 1;
+        return row;
+    }
+
+    /**
+     * Frees a row and the names it uses
+     */
+    private void freeRow(int row) {
+        if (mStates[row] == STATE_MISSING) {
+            mMissing--;
+        }
+        releaseString(mAlbums[row]);
+        releaseString(mArtists[row]);
+        releaseString(mFolders[row]);
+        mTextUsed -= textLength(row);
+        mTitleLengths[row] = -1;
+        mNameLengths[row] = -1;
+        mStates[row] = STATE_EMPTY;
+        removeSlot(mIds[row]);
+
+        if (--mLive == 0) {
+            // Give the memory of a large queue back
+            reset();
+        } else {
+            mRefs[row] = mFreeRow;
+            mFreeRow = row;
+        }
+    }
+
+    /**
+     * Empties the rows, the table and the names
+     */
+    private void reset() {
+        mSlots = new int[INITIAL_CAPACITY * 2];
+        mRowCount = 0;
+        mFreeRow = -1;
+        mLive = 0;
+        mMissing = 0;
+        growRows(INITIAL_CAPACITY);
+        mText = new byte[INITIAL_TEXT_CAPACITY];
+        mTextEnd = 0;
+        mTextUsed = 0;
+        mStrings = new String[INITIAL_CAPACITY];
+        mStringRefs = new int[INITIAL_CAPACITY];
+        mStringCount = 0;
+        mFreeString = -1;
+        mStringIds.clear();
+    }
+
+    /**
+     * Resizes the row columns, keeping the rows below mRowCount
+     */
+    private void growRows(int capacity) {
+        int count = mRowCount;
+        mIds = count == 0 ? new long[capacity] : Arrays.copyOf(mIds, capacity);
+        mAlbumIds = count == 0 ? new long[capacity] : Arrays.copyOf(mAlbumIds, capacity);
+        mArtistIds = count == 0 ? new long[capacity] : Arrays.copyOf(mArtistIds, capacity);
+        mDurations = count == 0 ? new long[capacity] : Arrays.copyOf(mDurations, capacity);
+        mTrackNumbers = count == 0 ? new int[capacity] : Arrays.copyOf(mTrackNumbers, capacity);
+        mAlbums = count == 0 ? new int[capacity] : Arrays.copyOf(mAlbums, capacity);
+        mArtists = count == 0 ? new int[capacity] : Arrays.copyOf(mArtists, capacity);
+        mFolders = count == 0 ? new int[capacity] : Arrays.copyOf(mFolders, capacity);
+        mRefs = count == 0 ? new int[capacity] : Arrays.copyOf(mRefs, capacity);
+        mStates = count == 0 ? new byte[capacity] : Arrays.copyOf(mStates, capacity);
+        mTextStarts = count == 0 ? new int[capacity] : Arrays.copyOf(mTextStarts, capacity);
+        mTitleLengths = count == 0 ? new int[capacity] : Arrays.copyOf(mTitleLengths, capacity);
+        mNameLengths = count == 0 ? new int[capacity] : Arrays.copyOf(mNameLengths, capacity);
+    }
+
+    /**
+     * Decodes a title or file name
+     *
+     * @param length The length in bytes, -1 for none
+     */
+    private String getText(int start, int length) {
+        return length == -1 ? null : new String(mText, start, length, UTF8);
+    }
+
+    /**
+     * Returns the bytes of text used by a row
+     */
+    private int textLength(int row) {
+        return Math.max(0, mTitleLengths[row]) + Math.max(0, mNameLengths[row]);
+    }
+
+    /**
+     * Makes room for the given number of bytes at the end of the text,
+     * dropping the text of the freed rows
+     */
+    private void ensureText(int length) {
+        if (mTextEnd + length <= mText.length) {
+            return;
+        }
+
+        byte[] text = new byte[Math.max(INITIAL_TEXT_CAPACITY, (mTextUsed + length) * 3 / 2)];
+        int end = 0;
+        for (int row = 0; row != mRowCount; ++row) {
+            int rowLength = textLength(row);
+            if (rowLength != 0) {
+                System.arraycopy(mText, mTextStarts[row], text, end, rowLength);
+                mTextStarts[row] = end;
+                end += rowLength;
+            }
+        }
+        mText = text;
+        mTextEnd = end;
+    }
+
+    /**
+     * Returns the row of the id, -1 if it has none
+     */
+    private int find(long id) {
+        return mSlots[slot(id)] - 1;
+    }
+
+    /**
+     * Returns the slot of the id, or the empty slot it goes in
+     */
+    private int slot(long id) {
+        int mask = mSlots.length - 1;
+        int slot = hash(id) & mask;
+        while (mSlots[slot] != 0 && mIds[mSlots[slot] - 1] != id) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int hash(long id) {
+        int hash = (int) (id ^ (id >>> 32)) * 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Empties the slot of the id, shifting back the ids probed past it
+     */
+    private void removeSlot(long id) {
+        int mask = mSlots.length - 1;
+        int hole = slot(id);
+        mSlots[hole] = 0;
+        for (int slot = (hole + 1) & mask; mSlots[slot] != 0; slot = (slot + 1) & mask) {
+            int home = hash(mIds[mSlots[slot] - 1]) & mask;
+
+            // Stays if its home is cyclically within (hole, slot]
+            boolean stays = hole <= slot ? (hole < home && home <= slot) : (hole < home || home <= slot);
+            if (!stays) {
+                mSlots[hole] = mSlots[slot];
+                mSlots[slot] = 0;
+                hole = slot;
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the table with the given power of two size
+     */
+    private void rehash(int capacity) {
+        int[] rows = mSlots;
+        mSlots = new int[capacity];
+        for (int row : rows) {
+            if (row != 0) {
+                mSlots[slot(mIds[row - 1])] = row;
+            }
+        }
+    }
+
+    /**
+     * Adds a reference to a name
+     *
+     * @return The index of the name, -1 for null
+     */
+    private int acquireString(String value) {
+        if (value == null) {
+            return -1;
+        }
+        Integer index = mStringIds.get(value);
+        int i;
+        if (index != null) {
+            i = index;
+        } else {
+            if (mFreeString != -1) {
+                i = mFreeString;
+                mFreeString = mStringRefs[i];
+            } else {
+                if (mStringCount == mStrings.length) {
+                    mStrings = Arrays.copyOf(mStrings, mStringCount * 2);
+                    mStringRefs = Arrays.copyOf(mStringRefs, mStringCount * 2);
+                }
+                i = mStringCount++;
+            }
+            mStrings[i] = value;
+            mStringRefs[i] = 0;
+            mStringIds.put(value, i);
+        }
+        mStringRefs[i]++;
+        return i;
+    }
+
+    /**
+     * Drops a reference to a name; the name goes with the last one
+     */
+    private void releaseString(int index) {
+        if (index != -1 && --mStringRefs[index] == 0) {
+            mStringIds.remove(mStrings[index]);
+            mStrings[index] = null;
+            mStringRefs[index] = mFreeString;
+            mFreeString = index;
+        }
+    }
+}
+
+/*EOF*/
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2016 Mark Jivko https://markjivko.com
+ *
+ * Licensed under the GNU General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://gnu.org/licenses/gpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Redistributions of files must retain the above copyright notice.
+ */
+package com.fairplayer;
+
+/**
+ * Maps MediaStore ids to their positions in a queue, without
+ * boxing: an open addressing table of ids, each pointing to the first
+ * position, with the other positions of the same id chained in order.
+ */
+final class FpTrackIndex {
+
+    /**
+     * Ids, by slot
+     */
+    private final long[] mKeys;
+    /**
+     * First position of the id in each slot, -1 for an empty slot
+     */
+    private final int[] mHeads;
+    /**
+     * Next position with the same id, -1 at the end of the chain
+     */
+    private final int[] mNext;
+    /**
+     * Slot mask; the table size is a power of two
+     */
+    private final int mMask;
+
+    /**
+     * @param ids The ids, by position
+     */
+    FpTrackIndex(long[] ids) {
+        int size = ids.length;
+        int capacity = 4;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+
+        mKeys = new long[capacity];
+        mHeads = new int[capacity];
+        mNext = new int[size];
+        mMask = capacity - 1;
+        for (int i = 0; i != capacity; ++i) {
+            mHeads[i] = -1;
+        }
+
+        // Backwards, so the chains are in ascending order
+        for (int i = size; --i != -1;) {
+            long id = ids[i];
+            int slot = slot(id);
+            mKeys[slot] = id;
+            mNext[i] = mHeads[slot];
+            mHeads[slot] = i;
+        }
+    }
+
+    /**
+     * Returns the first position of the id, -1 if it is not in the list
+     */
+    public int first(long id) {
+        return mHeads[slot(id)];
+    }
+
+    /**
+     * Returns the next position with the same id as the song at the given
+     * position, -1 if there is none
+     */
+    public int next(int position) {
+        return mNext[position];
+    }
+
+    /**
+     * Returns the slot of the id, or the empty slot it goes in
+     */
+    private int slot(long id) {
+        int hash = (int) (id ^ (id >>> 32)) * 0x9e3779b9;
+        int slot = (hash ^ (hash >>> 16)) & mMask;
+        while (mHeads[slot] != -1 && mKeys[slot] != id) {
+            slot = (slot + 1) & mMask;
+        }
+        return slot;
+    }
+}
+
+/*EOF*/
@@ -0,0 +1,536 @@
+/**
+ * Copyright 2016 Mark Jivko https://markjivko.com
+ *
+ * Licensed under the GNU General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://gnu.org/licenses/gpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Redistributions of files must retain the above copyright notice.
+ */
+package com.fairplayer;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persists the timeline as a snapshot plus an append-only journal of
+ * mutations (add range, remove range, move, shuffle, state change). The
+ * songs are saved in their base order, with the shuffled play order next
+ * to them, so the base order survives a restart.
+ *
+ * Mutations are recorded in memory while the timeline lock is held and
+ * appended to the journal with a single write on save. Once the journal
+ * grows too large, or after a change that reorders the whole timeline,
+ * it is compacted into a new snapshot, written through a buffer to a
+ * temporary file and atomically renamed into place.
+ */
+public final class FpTrackJournal {
+
+    /**
+     * Compact the journal into a snapshot past this size, in bytes
+     */
+    protected static final int MAX_JOURNAL_BYTES = 65536;
+
+    /**
+     * Journal header
+     */
+    protected static final int JOURNAL_MAGIC = 0x46504a31;
+
+    /**
+     * Journal records
+     */
+    protected static final byte OP_ADD = 1;
+    protected static final byte OP_REMOVE = 2;
+    protected static final byte OP_MOVE = 3;
+    protected static final byte OP_STATE = 4;
+    protected static final byte OP_SHUFFLE = 5;
+    protected static final byte OP_UNSHUFFLE = 6;
+
+    /**
+     * The restored state
+     */
+    public static class State {
+        public int pendingSeek;
+        public long pendingSeekSong = -1;
+        public FpTrackQueue songs = new FpTrackQueue();
+        public int position;
+        public int finishAction;
+        public int shuffleMode;
+    }
+
+    protected final File mSnapshotFile;
+    protected final File mJournalFile;
+
+    /**
+     * Records not written yet
+     */
+    protected final ByteArrayOutputStream mBuffer = new ByteArrayOutputStream(256);
+    protected final DataOutputStream mRecords = new DataOutputStream(mBuffer);
+
+    /**
+     * Generation of the current snapshot; the journal must match it
+     */
+    protected long mGeneration = 0;
+
+    /**
+     * Bytes in the journal file
+     */
+    protected long mJournalSize = 0;
+
+    /**
+     * The next save must write a full snapshot
+     */
+    protected boolean mNeedsSnapshot = true;
+
+    /**
+     * Nothing is saved before the state was loaded
+     */
+    protected boolean mLoaded = false;
+
+    /**
+     * Last journaled state
+     */
+    protected int mLastPosition = -1;
+    protected int mLastFinishAction = -1;
+    protected int mLastShuffleMode = -1;
+    protected int mLastPendingSeek = -1;
+    protected long mLastPendingSeekSong = -1;
+
+    /**
+     * Serializes the file operations
+     */
+    protected final Object[] mFileLock = new Object[0];
+
+    public FpTrackJournal(Context context, String name) {
+        mSnapshotFile = new File(context.getFilesDir(), name);
+        mJournalFile = new File(context.getFilesDir(), name + ".journal");
+    }
+
+    /**
+     * Read the snapshot and replay the journal on top of it
+     */
+    public State load() {
+        State state = new State();
+        synchronized (mFileLock) {
+            // Read the snapshot
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mSnapshotFile)));
+                try {
+                    state.pendingSeek = in.readInt();
+                    state.pendingSeekSong = in.readLong();
+                    state.songs = new FpTrackQueue(FpTrackTimeline.readSongs(in));
+                    state.position = in.readInt();
+                    state.finishAction = in.readInt();
+                    state.shuffleMode = in.readInt();
+
+                    // Snapshots written before the journal have no generation
+                    try {
+                        mGeneration = in.readLong();
+                    } catch (EOFException e) {
+                        mGeneration = 0;
+                    }
+
+                    // Snapshots written before the shuffle order have none
+                    try {
+                        state.songs.setOrder(readOrder(in, state.songs.size()));
+                    } catch (IOException e) {
+                        // Play in the saved order
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                mGeneration = 0;
+            }
+
+            // Replay the journal
+            replay(state);
+        }
+
+        synchronized (this) {
+            // Start over with a clean snapshot
+            mBuffer.reset();
+            mNeedsSnapshot = true;
+            mLoaded = true;
+        }
+        return state;
+    }
+
+    /**
+     * Apply the journal records to the snapshot state; a torn record at
+     * the end (crash while appending) is ignored
+     */
+    protected void replay(State state) {
+        if (!mJournalFile.exists()) {
+            return;
+        }
+
+        int records = 0;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mJournalFile)));
+            try {
+                // The journal belongs to another snapshot
+                if (in.readInt() != JOURNAL_MAGIC || in.readLong() != mGeneration) {
+                    return;
+                }
+
+                FpTrackQueue songs = state.songs;
+                while (true) {
+                    byte op = in.readByte();
+                    switch (op) {
+                        case OP_ADD: {
+                            int position = in.readInt();
+                            int count = in.readInt();
+                            ArrayList<FpTrack> added = new ArrayList<FpTrack>(count);
+                            for (int i = 0; i < count; i++) {
+                                long id = in.readLong();
+                                added.add(new FpTrack(id, in.readInt() & ~(~0 << FpTrack.FLAG_COUNT)));
+                            }
+                            songs.addAll(Math.min(position, songs.size()), added);
+                            break;
+                        }
+                        case OP_REMOVE: {
+                            int position = in.readInt();
+                            int count = in.readInt();
+                            int end = Math.min(songs.size(), position + count);
+                            if (position < end) {
+                                songs.subList(position, end).clear();
+                            }
+                            break;
+                        }
+                        case OP_MOVE: {
+                            int from = in.readInt();
+                            int to = in.readInt();
+                            if (from < songs.size() && to < songs.size()) {
+                                songs.move(from, to);
+                            }
+                            break;
+                        }
+                        case OP_SHUFFLE: {
+                            int[] permutation = readOrder(in, songs.size());
+                            if (null != permutation && FpTrackQueue.isPermutation(permutation, songs.size())) {
+                                songs.shuffle(permutation);
+                            }
+                            break;
+                        }
+                        case OP_UNSHUFFLE: {
+                            songs.unshuffle();
+                            break;
+                        }
+                        case OP_STATE: {
+                            // Read the whole record first, a torn one changes nothing
+                            int position = in.readInt();
+                            int finishAction = in.readInt();
+                            int shuffleMode = in.readInt();
+                            int pendingSeek = in.readInt();
+                            long pendingSeekSong = in.readLong();
+                            state.position = position;
+                            state.finishAction = finishAction;
+                            state.shuffleMode = shuffleMode;
+                            state.pendingSeek = pendingSeek;
+                            state.pendingSeekSong = pendingSeekSong;
+                            break;
+                        }
+                        default:
+                            throw new IOException("Invalid journal record " + op);
+                    }
+                    records++;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (EOFException e) {
+            // End of the journal
+        } catch (IOException e) {
+            Log.w(Constants.LOG_TAG, "Failed to replay the timeline journal", e);
+        }
+
+        Log.d(Constants.LOG_TAG, "Replayed " + records + " timeline journal records");
+    }
+
+    /**
+     * Record songs inserted at a position
+     */
+    public synchronized void add(int position, List<FpTrack> songs) {
+        if (mNeedsSnapshot) {
+            return;
+        }
+        try {
+            mRecords.writeByte(OP_ADD);
+            mRecords.writeInt(position);
+            mRecords.writeInt(songs.size());
+            for (FpTrack song : songs) {
+                mRecords.writeLong(song.id);
+                mRecords.writeInt(song.flags);
+            }
+        } catch (IOException e) {
+            reset();
+        }
+    }
+
+    /**
+     * Record a range of removed songs
+     */
+    public synchronized void remove(int position, int count) {
+        if (mNeedsSnapshot || count <= 0) {
+            return;
+        }
+        try {
+            mRecords.writeByte(OP_REMOVE);
+            mRecords.writeInt(position);
+            mRecords.writeInt(count);
+        } catch (IOException e) {
+            reset();
+        }
+    }
+
+    /**
+     * Record a song moved to another position
+     */
+    public synchronized void move(int from, int to) {
+        if (mNeedsSnapshot) {
+            return;
+        }
+        try {
+            mRecords.writeByte(OP_MOVE);
+            mRecords.writeInt(from);
+            mRecords.writeInt(to);
+        } catch (IOException e) {
+            reset();
+        }
+    }
+
+    /**
+     * Record a shuffle of the play order
+     *
+     * @param permutation The song at position i came from permutation[i]
+     */
+    public synchronized void shuffle(int[] permutation) {
+        if (mNeedsSnapshot) {
+            return;
+        }
+        try {
+            mRecords.writeByte(OP_SHUFFLE);
+            writeOrder(mRecords, permutation);
+        } catch (IOException e) {
+            reset();
+        }
+    }
+
+    /**
+     * Record the return to the base order
+     */
+    public synchronized void unshuffle() {
+        if (mNeedsSnapshot) {
+            return;
+        }
+        try {
+            mRecords.writeByte(OP_UNSHUFFLE);
+        } catch (IOException e) {
+            reset();
+        }
+    }
+
+    /**
+     * The timeline was rebuilt or reordered: the next save writes a snapshot
+     */
+    public synchronized void reset() {
+        mBuffer.reset();
+        mNeedsSnapshot = true;
+    }
+
+    /**
+     * Save the pending records, or a full snapshot when needed
+     *
+     * @param timeline The timeline to save
+     * @param pendingSeek The position in the current song
+     * @param pendingSeekSong The id of the current song
+     */
+    public void save(FpTrackTimeline timeline, int pendingSeek, long pendingSeekSong) {
+        // One save at a time, so the writes land in the order the changes
+        // were taken; the timeline lock is only held while taking them
+        synchronized (mFileLock) {
+            byte[] snapshot = null;
+            byte[] records = null;
+            long generation;
+
+            // Take the changes while the timeline can not change
+            synchronized (timeline) {
+                synchronized (this) {
+                    if (!mLoaded) {
+                        return;
+                    }
+
+                    try {
+                        if (mNeedsSnapshot || mJournalSize + mBuffer.size() > MAX_JOURNAL_BYTES) {
+                            ByteArrayOutputStream bytes = new ByteArrayOutputStream(20 + timeline.getLength() * 16);
+                            DataOutputStream out = new DataOutputStream(bytes);
+                            out.writeInt(pendingSeek);
+                            out.writeLong(pendingSeekSong);
+                            timeline.writeState(out);
+                            out.writeLong(++mGeneration);
+                            writeOrder(out, timeline.getOrder());
+                            out.close();
+                            snapshot = bytes.toByteArray();
+                            mBuffer.reset();
+                            mNeedsSnapshot = false;
+                        } else {
+                            int position = timeline.getPosition();
+                            int finishAction = timeline.getFinishAction();
+                            int shuffleMode = timeline.getShuffleMode();
+                            if (position != mLastPosition || finishAction != mLastFinishAction || shuffleMode != mLastShuffleMode
+                                    || pendingSeek != mLastPendingSeek || pendingSeekSong != mLastPendingSeekSong) {
+                                mRecords.writeByte(OP_STATE);
+                                mRecords.writeInt(position);
+                                mRecords.writeInt(finishAction);
+                                mRecords.writeInt(shuffleMode);
+                                mRecords.writeInt(pendingSeek);
+                                mRecords.writeLong(pendingSeekSong);
+                            }
+                            if (mBuffer.size() > 0) {
+                                records = mBuffer.toByteArray();
+                                mBuffer.reset();
+                            }
+                        }
+                    } catch (IOException e) {
+                        Log.w(Constants.LOG_TAG, "Failed to save state", e);
+                        mBuffer.reset();
+                        mNeedsSnapshot = true;
+                        return;
+                    }
+
+                    // Remember the state that is now on disk
+                    mLastPosition = timeline.getPosition();
+                    mLastFinishAction = timeline.getFinishAction();
+                    mLastShuffleMode = timeline.getShuffleMode();
+                    mLastPendingSeek = pendingSeek;
+                    mLastPendingSeekSong = pendingSeekSong;
+                    generation = mGeneration;
+                }
+            }
+
+            // Write outside of the timeline lock
+            try {
+                if (null != snapshot) {
+                    writeSnapshot(snapshot, generation);
+                } else if (null != records) {
+                    appendRecords(records);
+                }
+            } catch (IOException e) {
+                Log.w(Constants.LOG_TAG, "Failed to save state", e);
+                reset();
+            }
+        }
+    }
+
+    /**
+     * Write the snapshot and start an empty journal, both with atomic renames
+     */
+    protected void writeSnapshot(byte[] snapshot, long generation) throws IOException {
+        writeAtomically(mSnapshotFile, snapshot);
+
+        // A crash before this point leaves the old journal, which no longer
+        // matches the snapshot generation and gets ignored
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(12);
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeInt(JOURNAL_MAGIC);
+        header.writeLong(generation);
+        header.close();
+        writeAtomically(mJournalFile, bytes.toByteArray());
+
+        synchronized (this) {
+            mJournalSize = bytes.size();
+        }
+    }
+
+    /**
+     * Append records to the journal with a single write
+     */
+    protected void appendRecords(byte[] records) throws IOException {
+        FileOutputStream out = new FileOutputStream(mJournalFile, true);
+        try {
+            out.write(records);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        synchronized (this) {
+            mJournalSize += records.length;
+        }
+    }
+
+    /**
+     * Write a play order or a permutation, -1 for none
+     */
+    protected static void writeOrder(DataOutputStream out, int[] order) throws IOException {
+        if (null == order) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(order.length);
+        for (int index : order) {
+            out.writeInt(index);
+        }
+    }
+
+    /**
+     * Read an order written by writeOrder()
+     *
+     * @param max The number of songs the order applies to
+     */
+    protected static int[] readOrder(DataInputStream in, int max) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            return null;
+        }
+        if (count > max) {
+            throw new IOException("Invalid order of " + count + " songs");
+        }
+        int[] order = new int[count];
+        for (int i = 0; i != count; ++i) {
+            order[i] = in.readInt();
+        }
+        return order;
+    }
+
+    /**
+     * Write a file through a temporary file and rename it into place
+     */
+    protected static void writeAtomically(File file, byte[] data) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(file)) {
+            throw new IOException("Failed to rename " + temp + " to " + file);
+        }
+    }
+}
+
+/*EOF*/
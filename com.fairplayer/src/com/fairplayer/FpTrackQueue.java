@@ -0,0 +1,511 @@
+/**
+ * Copyright 2016 Mark Jivko https://markjivko.com
+ *
+ * Licensed under the GNU General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://gnu.org/licenses/gpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Redistributions of files must retain the above copyright notice.
+ */
+package com.fairplayer;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+import android.database.Cursor;
+
+/**
+ * The songs of the timeline in play order, stored as a stable base order
+ * plus an int[] permutation while shuffled: the song at play position i is
+ * the base song at mOrder[i].
+ *
+ * Shuffling or unshuffling only replaces the permutation, the base order
+ * is never touched. Songs inserted while shuffled are appended to the
+ * base order, so going back to it keeps the order they were added in.
+ *
+ * Entries are kept in parallel primitive arrays of ids, flags and keys;
+ * their metadata lives in a FpTrackColumns shared by every entry with the
+ * same id. get() returns a new FpTrack view each time: compare songs by id,
+ * or entries by key, never by reference.
+ */
+final class FpTrackQueue extends AbstractList<FpTrack> implements RandomAccess {
+
+    /**
+     * Metadata of the songs, by id
+     */
+    private final FpTrackColumns mColumns;
+    /**
+     * Ids, flags and keys of the songs, in base order
+     */
+    private long[] mIds;
+    private int[] mFlags;
+    private int[] mKeys;
+    private int mSize;
+    /**
+     * Key given to the next entry; identifies an entry while it is queued
+     */
+    private int mNextKey;
+    /**
+     * Base index of each play position, null when playing in base order;
+     * may be longer than the queue
+     */
+    private int[] mOrder;
+    /**
+     * Set for the read only copies made by freeze()
+     */
+    private final boolean mFrozen;
+
+    FpTrackQueue() {
+        mColumns = new FpTrackColumns();
+        mIds = new long[12];
+        mFlags = new int[12];
+        mKeys = new int[12];
+        mFrozen = false;
+    }
+
+    /**
+     * @param songs The songs, in base order
+     */
+    FpTrackQueue(List<FpTrack> songs) {
+        this();
+        addAll(0, songs);
+    }
+
+    /**
+     * Read only copy of the entries, sharing the metadata
+     */
+    private FpTrackQueue(FpTrackQueue queue) {
+        mColumns = queue.mColumns;
+        mSize = queue.mSize;
+        mIds = Arrays.copyOf(queue.mIds, mSize);
+        mFlags = Arrays.copyOf(queue.mFlags, mSize);
+        mKeys = Arrays.copyOf(queue.mKeys, mSize);
+        mOrder = queue.getOrder();
+        mNextKey = queue.mNextKey;
+        mFrozen = true;
+    }
+
+    @Override
+    public FpTrack get(int pos) {
+        int base = base(pos);
+        FpTrack song = new FpTrack(mIds[base], mFlags[base]);
+        mColumns.copyTo(song);
+        return song;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public void add(int pos, FpTrack song) {
+        addAll(pos, Collections.singletonList(song));
+    }
+
+    @Override
+    public boolean addAll(int pos, Collection<? extends FpTrack> songs) {
+        checkWritable();
+        int size = mSize;
+        if (pos < 0 || pos > size) {
+            throw new IndexOutOfBoundsException("Invalid position " + pos);
+        }
+        int count = songs.size();
+        if (count == 0) {
+            return false;
+        }
+
+        if (mIds.length < size + count) {
+            int capacity = Math.max(size + count, mIds.length + (mIds.length >> 1));
+            mIds = Arrays.copyOf(mIds, capacity);
+            mFlags = Arrays.copyOf(mFlags, capacity);
+            mKeys = Arrays.copyOf(mKeys, capacity);
+        }
+
+        int base;
+        if (mOrder == null) {
+            base = pos;
+            System.arraycopy(mIds, pos, mIds, pos + count, size - pos);
+            System.arraycopy(mFlags, pos, mFlags, pos + count, size - pos);
+            System.arraycopy(mKeys, pos, mKeys, pos + count, size - pos);
+        } else {
+            // Appended to the base order, inserted in the play order
+            base = size;
+            if (mOrder.length < size + count) {
+                mOrder = Arrays.copyOf(mOrder, Math.max(size + count, mOrder.length * 2));
+            }
+            System.arraycopy(mOrder, pos, mOrder, pos + count, size - pos);
+            for (int i = 0; i != count; ++i) {
+                mOrder[pos + i] = size + i;
+            }
+        }
+
+        for (FpTrack song : songs) {
+            mIds[base] = song.id;
+            mFlags[base] = song.flags;
+            mKeys[base] = mNextKey++;
+            mColumns.retain(song.id);
+            if (song.isFilled()) {
+                mColumns.fill(song);
+            }
+            base++;
+        }
+        mSize += count;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public FpTrack remove(int pos) {
+        FpTrack song = get(pos);
+        removeRange(pos, pos + 1);
+        return song;
+    }
+
+    @Override
+    public void clear() {
+        checkWritable();
+        for (int i = 0; i != mSize; ++i) {
+            mColumns.release(mIds[i]);
+        }
+        mSize = 0;
+        modCount++;
+    }
+
+    @Override
+    protected void removeRange(int from, int to) {
+        checkWritable();
+        if (from >= to) {
+            return;
+        }
+        if (mOrder == null) {
+            for (int i = from; i != to; ++i) {
+                mColumns.release(mIds[i]);
+            }
+            System.arraycopy(mIds, to, mIds, from, mSize - to);
+            System.arraycopy(mFlags, to, mFlags, from, mSize - to);
+            System.arraycopy(mKeys, to, mKeys, from, mSize - to);
+            mSize -= to - from;
+            modCount++;
+        } else {
+            boolean[] remove = new boolean[mSize];
+            Arrays.fill(remove, from, to, true);
+            removeMarked(remove);
+        }
+    }
+
+    /**
+     * Removes the songs at the marked play positions in a single pass
+     *
+     * @param remove One flag per play position
+     */
+    void removeMarked(boolean[] remove) {
+        checkWritable();
+        int size = mSize;
+
+        // The removed base indices
+        boolean[] removeBase = remove;
+        if (mOrder != null) {
+            removeBase = new boolean[size];
+            for (int i = 0; i != size; ++i) {
+                if (remove[i]) {
+                    removeBase[mOrder[i]] = true;
+                }
+            }
+        }
+
+        // Compact the base order, remembering where each song went
+        int[] moved = mOrder == null ? null : new int[size];
+        int write = 0;
+        for (int read = 0; read != size; ++read) {
+            if (removeBase[read]) {
+                mColumns.release(mIds[read]);
+            } else {
+                mIds[write] = mIds[read];
+                mFlags[write] = mFlags[read];
+                mKeys[write] = mKeys[read];
+                if (moved != null) {
+                    moved[read] = write;
+                }
+                write++;
+            }
+        }
+        mSize = write;
+
+        // Compact the play order
+        if (mOrder != null) {
+            write = 0;
+            for (int read = 0; read != size; ++read) {
+                if (!remove[read]) {
+                    mOrder[write++] = moved[mOrder[read]];
+                }
+            }
+        }
+        modCount++;
+    }
+
+    /**
+     * Moves a song to another play position; the base order only changes
+     * when playing in base order
+     */
+    void move(int from, int to) {
+        checkWritable();
+        if (mOrder == null) {
+            long id = mIds[from];
+            int flags = mFlags[from];
+            int key = mKeys[from];
+            int src = from < to ? from + 1 : to;
+            int dst = from < to ? from : to + 1;
+            int length = Math.abs(to - from);
+            System.arraycopy(mIds, src, mIds, dst, length);
+            System.arraycopy(mFlags, src, mFlags, dst, length);
+            System.arraycopy(mKeys, src, mKeys, dst, length);
+            mIds[to] = id;
+            mFlags[to] = flags;
+            mKeys[to] = key;
+        } else {
+            int base = mOrder[from];
+            if (from < to) {
+                System.arraycopy(mOrder, from + 1, mOrder, from, to - from);
+            } else {
+                System.arraycopy(mOrder, to, mOrder, to + 1, from - to);
+            }
+            mOrder[to] = base;
+        }
+        modCount++;
+    }
+
+    /**
+     * Returns the MediaStore id of the song at a play position
+     */
+    long getId(int pos) {
+        return mIds[base(pos)];
+    }
+
+    /**
+     * Returns the FpTrack.FLAG_* of the song at a play position
+     */
+    int getFlags(int pos) {
+        return mFlags[base(pos)];
+    }
+
+    /**
+     * Returns the key of the entry at a play position
+     */
+    int getKey(int pos) {
+        return mKeys[base(pos)];
+    }
+
+    /**
+     * Returns the play position of the entry with the given key, -1 if it
+     * is no longer queued
+     */
+    int indexOfKey(int key) {
+        for (int i = 0; i != mSize; ++i) {
+            if (getKey(i) == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if the metadata of the song at a play position is loaded
+     */
+    boolean isFilled(int pos) {
+        return mColumns.getState(getId(pos)) == FpTrackColumns.STATE_FILLED;
+    }
+
+    /**
+     * Returns true if the song at a play position was not found in the
+     * MediaStore
+     */
+    boolean isMissing(int pos) {
+        return mColumns.getState(getId(pos)) == FpTrackColumns.STATE_MISSING;
+    }
+
+    /**
+     * Returns true if some song was not found in the MediaStore
+     */
+    boolean hasMissing() {
+        return mColumns.hasMissing();
+    }
+
+    /**
+     * Populates the metadata of the ids read from a cursor, and marks the
+     * other ids as missing from the MediaStore
+     *
+     * @param ids The ids that were looked up
+     * @param cursor Cursor queried with FpTrack.FILLED_PROJECTION, sorted
+     * by id; closed by the caller
+     */
+    void fill(long[] ids, Cursor cursor) {
+        while (cursor.moveToNext()) {
+            mColumns.fill(cursor);
+        }
+        for (long id : ids) {
+            mColumns.setMissing(id);
+        }
+    }
+
+    /**
+     * Returns the ids, in play order
+     */
+    long[] getIds() {
+        long[] ids = new long[mSize];
+        for (int i = 0; i != mSize; ++i) {
+            ids[i] = getId(i);
+        }
+        return ids;
+    }
+
+    /**
+     * Reads the album ids and track numbers of the songs, in play order
+     */
+    void getAlbumOrder(long[] albumIds, int[] trackNumbers) {
+        mColumns.getAlbumOrder(getIds(), albumIds, trackNumbers);
+    }
+
+    /**
+     * Returns the id of the song at a base index
+     */
+    long getBaseId(int index) {
+        return mIds[index];
+    }
+
+    /**
+     * Returns the FpTrack.FLAG_* of the song at a base index
+     */
+    int getBaseFlags(int index) {
+        return mFlags[index];
+    }
+
+    /**
+     * Returns a read only copy of the entries, in the same order, sharing
+     * the metadata; the copy sees later populated songs
+     */
+    FpTrackQueue freeze() {
+        return new FpTrackQueue(this);
+    }
+
+    /**
+     * Returns true while the play order is a permutation of the base order
+     */
+    boolean isShuffled() {
+        return mOrder != null;
+    }
+
+    /**
+     * Rearranges the play order
+     *
+     * @param permutation The song at play position i becomes the one at
+     * play position permutation[i]
+     */
+    void shuffle(int[] permutation) {
+        checkWritable();
+        int size = mSize;
+        int[] order = new int[size];
+        for (int i = 0; i != size; ++i) {
+            order[i] = mOrder == null ? permutation[i] : mOrder[permutation[i]];
+        }
+        mOrder = order;
+        modCount++;
+    }
+
+    /**
+     * Goes back to the base order
+     *
+     * @return The permutation that was applied, as for shuffle(int[]);
+     * null if already in base order
+     */
+    int[] unshuffle() {
+        checkWritable();
+        if (mOrder == null) {
+            return null;
+        }
+        int size = mSize;
+        int[] permutation = new int[size];
+        for (int i = 0; i != size; ++i) {
+            permutation[mOrder[i]] = i;
+        }
+        mOrder = null;
+        modCount++;
+        return permutation;
+    }
+
+    /**
+     * Returns the base index of the song at a play position
+     */
+    int getBaseIndex(int pos) {
+        return mOrder == null ? pos : mOrder[pos];
+    }
+
+    /**
+     * Returns a copy of the play order, null when playing in base order
+     */
+    int[] getOrder() {
+        return mOrder == null ? null : Arrays.copyOf(mOrder, mSize);
+    }
+
+    /**
+     * Sets the play order saved by getOrder()
+     *
+     * @return False if the order does not match the songs and was ignored
+     */
+    boolean setOrder(int[] order) {
+        checkWritable();
+        if (order != null && !isPermutation(order, mSize)) {
+            return false;
+        }
+        mOrder = order;
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Returns true if the array holds every index below size exactly once
+     */
+    static boolean isPermutation(int[] permutation, int size) {
+        if (permutation.length != size) {
+            return false;
+        }
+        boolean[] seen = new boolean[size];
+        for (int index : permutation) {
+            if (index < 0 || index >= size || seen[index]) {
+                return false;
+            }
+            seen[index] = true;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the base index of a play position, checking bounds
+     */
+    private int base(int pos) {
+        if (pos < 0 || pos >= mSize) {
+            throw new IndexOutOfBoundsException("Invalid position " + pos);
+        }
+        return mOrder == null ? pos : mOrder[pos];
+    }
+
+    private void checkWritable() {
+        if (mFrozen) {
+            throw new UnsupportedOperationException("Frozen queue");
+        }
+    }
+}
+
+/*EOF*/
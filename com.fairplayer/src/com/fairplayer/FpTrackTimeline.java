@@ -21,15 +21,21 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
 import android.provider.MediaStore;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.ListIterator;
+import java.util.List;
 import junit.framework.Assert;
 
 import android.widget.Toast;
@@ -38,7 +44,7 @@ import android.widget.Toast;
  * Contains the list of currently playing songs, implements repeat and shuffle
  * support, and contains methods to fetch more songs from the MediaStore.
  */
-public final class FpTrackTimeline {
+public final class FpTrackTimeline implements Handler.Callback {
 
     /**
      * Stop playback.
@@ -168,6 +174,16 @@ public final class FpTrackTimeline {
      */
     public static final int[] SHUFFLE_ICONS = {R.drawable.fp_shuffle_none, R.drawable.fp_shuffle_all, R.drawable.fp_shuffle_albums};
 
+    /**
+     * Maximum number of songs populated with one MediaStore query.
+     */
+    private static final int HYDRATE_PAGE_SIZE = 250;
+
+    /**
+     * Number of songs added at once by addSongs(), after the first one.
+     */
+    private static final int ENQUEUE_BATCH_SIZE = 500;
+
     /**
      * Move current position to the previous album.
      *
@@ -201,10 +217,11 @@ public final class FpTrackTimeline {
 
     private final Context mContext;
     /**
-     * All the songs currently contained in the timeline. Each FpTrack object
-     * should be unique, even if it refers to the same media.
+     * All the songs currently contained in the timeline, in play order.
+     * Each FpTrack object should be unique, even if it refers to the same
+     * media.
      */
-    private ArrayList<FpTrack> mSongs = new ArrayList<FpTrack>(12);
+    private FpTrackQueue mSongs = new FpTrackQueue();
     /**
      * The position of the current song (i.e. the playing song).
      */
@@ -219,13 +236,52 @@ public final class FpTrackTimeline {
      */
     private int mFinishAction;
     /**
-     * Prepared (shuffled) replacement playlist
+     * Prepared shuffle permutation of mSongs, for the next pass
      */
-    private ArrayList<FpTrack> mShuffleCache;
+    private int[] mShuffleCache;
     /**
-     * Hash code of mSongs while mShuffleCache was generated
+     * Value of mModCount when mShuffleCache was generated
      */
     private int mShuffleTicket;
+    /**
+     * Incremented by every insertion, removal or move
+     */
+    private int mModCount;
+    /**
+     * Populates the songs asked for by snapshot readers, created on first use
+     */
+    private Handler mHydrateHandler;
+    /**
+     * Ids of the first songs of the pages with a pending hydration
+     * request, guarded by itself
+     */
+    private final HashSet<Long> mHydrating = new HashSet<Long>();
+    /**
+     * Set by release(); the background hydration stops
+     */
+    private volatile boolean mReleased;
+
+    /**
+     * Timeline version, incremented by every published change
+     */
+    private long mVersion;
+    /**
+     * Changes recorded since the last published version
+     */
+    private FpTrackTimelineDiff mDiff;
+    /**
+     * Published diffs waiting to be dispatched
+     */
+    private ArrayList<FpTrackTimelineDiff> mPublished = new ArrayList<FpTrackTimelineDiff>();
+    /**
+     * Position and length at the last published version
+     */
+    private int mPublishedPos;
+    private int mPublishedSize;
+    /**
+     * Snapshot of the last published version, built on demand
+     */
+    private volatile FpTrackTimelineSnapshot mSnapshot;
 
     // for saveActiveSongs()
     private FpTrack mSavedPrevious;
@@ -252,8 +308,10 @@ public final class FpTrackTimeline {
         /**
          * Called when the timeline state has changed and should be saved to
          * storage.
+         *
+         * @param diff The changes since the previous version
          */
-        void timelineChanged();
+        void timelineChanged(FpTrackTimelineDiff diff);
 
         /**
          * Called when the length of the timeline has changed.
@@ -266,8 +324,32 @@ public final class FpTrackTimeline {
      */
     private Callback mCallback;
 
+    /**
+     * Records the timeline mutations, if set.
+     */
+    private FpTrackJournal mJournal;
+
+    /**
+     * Random songs for FINISH_RANDOM, fetched ahead of time
+     */
+    private final FpThreadRandomSupplier mRandom;
+    /**
+     * A random song was asked for while none was ready
+     */
+    private boolean mRandomWaiting;
+    /**
+     * Do not take random songs, while saving the active songs
+     */
+    private boolean mRandomPaused;
+
     public FpTrackTimeline(Context context) {
         mContext = context;
+        mRandom = new FpThreadRandomSupplier(context, new Runnable() {
+            @Override
+            public void run() {
+                randomSongsReady();
+            }
+        });
     }
 
     /**
@@ -305,112 +387,402 @@ public final class FpTrackTimeline {
      * @param in The stream to read from.
      */
     public void readState(DataInputStream in) throws IOException {
+        FpTrackQueue songs = new FpTrackQueue(readSongs(in));
+        int position = in.readInt();
+        int finishAction = in.readInt();
+        int shuffleMode = in.readInt();
+        restoreState(songs, position, finishAction, shuffleMode);
+    }
+
+    /**
+     * Reads the unpopulated songs saved by FpTrackTimeline#writeState(DataOutputStream)
+     *
+     * @param in The stream to read from.
+     */
+    public static ArrayList<FpTrack> readSongs(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        ArrayList<FpTrack> songs = new ArrayList<FpTrack>(Math.max(0, n));
+        for (int i = 0; i < n; ++i) {
+            long id = in.readLong();
+            if (id == -1) {
+                continue;
+            }
+            songs.add(new FpTrack(id, in.readInt() & ~(~0 << FpTrack.FLAG_COUNT)));
+        }
+        return songs;
+    }
+
+    /**
+     * Initializes the timeline with unpopulated songs. The current, previous
+     * and next songs are populated right away; the others are populated
+     * from the MediaStore in pages, on a background thread.
+     *
+     * @param songs The songs, with their ids and flags set, and their
+     * play order
+     * @param position The position of the current song
+     * @param finishAction One of FpTrackTimeline.FINISH_*
+     * @param shuffleMode One of FpTrackTimeline.SHUFFLE_*
+     */
+    public void restoreState(FpTrackQueue songs, int position, int finishAction, int shuffleMode) {
+        boolean hydrate;
         synchronized (this) {
-            int n = in.readInt();
-            if (n > 0) {
-                ArrayList<FpTrack> songs = new ArrayList<FpTrack>(n);
-
-                // Fill the selection with the ids of all the saved songs
-                // and initialize the timeline with unpopulated songs.
-                StringBuilder selection = new StringBuilder("_ID IN (");
-                for (int i = 0; i != n; ++i) {
-                    long id = in.readLong();
-                    if (id == -1) {
-                        continue;
-                    }
+            mSongs = songs;
+            mCurrentPos = Math.min(mSongs.size(), Math.abs(position));
+            mFinishAction = finishAction;
+            mShuffleMode = shuffleMode;
+
+            // Guard against corruption
+            if (mFinishAction < 0 || mFinishAction >= REPEAT_ICONS.length) {
+                mFinishAction = 0;
+            }
+            if (mShuffleMode < 0 || mShuffleMode >= SHUFFLE_ICONS.length) {
+                mShuffleMode = 0;
+            }
+            if (mShuffleMode == SHUFFLE_NONE && mSongs.isShuffled()) {
+                if (mCurrentPos < mSongs.size()) {
+                    mCurrentPos = mSongs.getBaseIndex(mCurrentPos);
+                }
+                mSongs.unshuffle();
+            }
 
-                    // Add the index to the flags so we can sort
-                    int flags = in.readInt() & ~(~0 << FpTrack.FLAG_COUNT) | i << FpTrack.FLAG_COUNT;
-                    songs.add(new FpTrack(id, flags));
+            // Populate the active songs, dropping the ones that are gone
+            do {
+                int size = mSongs.size();
+                hydrateRange(mSongs, mCurrentPos - 1, mCurrentPos + 2);
+                hydrateRange(mSongs, 0, 1);
+                hydrateRange(mSongs, size - 1, size);
+            } while (purgeMissing());
+            mCurrentPos = Math.min(mSongs.size(), mCurrentPos);
+            hydrate = nextUnfilled(mSongs, mCurrentPos) != -1;
+
+            if (mFinishAction == FINISH_RANDOM) {
+                mRandom.prefetch();
+            }
 
-                    if (i != 0) {
-                        selection.append(',');
-                    }
-                    selection.append(id);
+            mShuffleCache = null;
+            mModCount++;
+
+            // A new timeline: nothing to diff against
+            mDiff = null;
+            mPublished.clear();
+            mPublishedPos = mCurrentPos;
+            mPublishedSize = mSongs.size();
+            mVersion++;
+            mSnapshot = null;
+        }
+
+        // Page the remaining metadata in the background
+        if (hydrate) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    hydrateRemaining();
                 }
-                selection.append(')');
-
-                // Sort songs by id---this is the order the query will
-                // return its results in.
-                Collections.sort(songs, new IdComparator());
-
-                ContentResolver resolver = mContext.getContentResolver();
-                Uri media = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
-
-                Cursor cursor = FpUtilsMedia.queryResolver(resolver, media, FpTrack.FILLED_PROJECTION, selection.toString(), null, MediaStore.MediaColumns._ID);
-                if (cursor != null) {
-                    if (cursor.getCount() != 0) {
-                        cursor.moveToNext();
-
-                        // Loop through timeline entries, looking for a row
-                        // that matches the id. One row may match multiple
-                        // entries.
-                        Iterator<FpTrack> it = songs.iterator();
-                        while (it.hasNext()) {
-                            FpTrack e = it.next();
-                            while (cursor.getLong(0) < e.id && !cursor.isLast()) {
-                                cursor.moveToNext();
-                            }
-                            if (cursor.getLong(0) == e.id) {
-                                e.populate(cursor);
-                            }
-                        }
-                    }
+            }, FpTrackTimeline.class.getSimpleName());
+            thread.start();
+        }
+    }
+
+    /**
+     * Populates the remaining songs page by page, starting after the
+     * current song, and drops the songs missing from the MediaStore.
+     */
+    private void hydrateRemaining() {
+        boolean done = false;
+        while (!done && !mReleased) {
+            // Next unpopulated song, from the current position on
+            FpTrackQueue songs;
+            int size;
+            int next;
+            synchronized (this) {
+                songs = mSongs;
+                size = songs.size();
+                next = nextUnfilled(songs, mCurrentPos);
+            }
+            // The query runs without the lock; stop if it fails
+            done = next == -1 || hydrateRangeUnlocked(songs, next, size) == 0;
+
+            boolean purged;
+            synchronized (this) {
+                saveActiveSongs();
+                purged = purgeMissing();
+                if (purged) {
+                    broadcastChangedSongs();
+                }
+            }
+
+            if (purged) {
+                changed();
+            }
+        }
+    }
+
+    /**
+     * Returns the position of the first unpopulated song, from the given
+     * position on and wrapping around, -1 if there is none; the caller
+     * holds the lock.
+     */
+    private int nextUnfilled(FpTrackQueue songs, int from) {
+        int size = songs.size();
+        for (int i = 0; i < size; i++) {
+            int pos = (from + i) % size;
+            if (!songs.isFilled(pos) && !songs.isMissing(pos)) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Populates the page of a snapshot starting at the given position.
+     *
+     * @param songs The songs of the snapshot
+     * @param index The position of the song to populate
+     */
+    void hydrate(FpTrackQueue songs, int index) {
+        synchronized (this) {
+            hydrateRange(songs, index, index + HYDRATE_PAGE_SIZE);
+        }
+    }
+
+    /**
+     * Populates the page of a snapshot starting at the given position on a
+     * background thread, then publishes a new version so readers bind the
+     * songs again. Returns right away.
+     *
+     * @param songs The songs of the snapshot
+     * @param index The position of the song to populate
+     */
+    void requestHydrate(FpTrackQueue songs, int index) {
+        synchronized (mHydrating) {
+            if (mReleased || !mHydrating.add(songs.getId(index))) {
+                return;
+            }
+            if (mHydrateHandler == null) {
+                HandlerThread handlerThread = new HandlerThread(FpTrackTimeline.class.getSimpleName(), Process.THREAD_PRIORITY_BACKGROUND);
+                handlerThread.start();
+                mHydrateHandler = new Handler(handlerThread.getLooper(), this);
+            }
+            mHydrateHandler.sendMessage(mHydrateHandler.obtainMessage(MSG_HYDRATE, index, 0, songs));
+        }
+    }
 
-                    cursor.close();
+    /**
+     * Stops the background hydration and quits the helper threads; called
+     * when the service is destroyed, the timeline is not used afterwards
+     */
+    public void release() {
+        mRandom.quit();
+        synchronized (mHydrating) {
+            mReleased = true;
+            if (mHydrateHandler != null) {
+                mHydrateHandler.removeMessages(MSG_HYDRATE);
+                mHydrateHandler.getLooper().quit();
+                mHydrateHandler = null;
+            }
+        }
+    }
 
-                    // The query may have returned zero results or we might 
-                    // have failed to populate some songs: Get rid of all
-                    // uninitialized items
-                    Iterator<FpTrack> it = songs.iterator();
-                    while (it.hasNext()) {
-                        FpTrack e = it.next();
-                        if (e.isFilled() == false) {
-                            it.remove();
+    private static final int MSG_HYDRATE = 1;
+
+    @Override
+    public boolean handleMessage(Message message) {
+        switch (message.what) {
+            case MSG_HYDRATE: {
+                FpTrackQueue songs = (FpTrackQueue) message.obj;
+                int index = message.arg1;
+
+                boolean populated = hydrateRangeUnlocked(songs, index, index + HYDRATE_PAGE_SIZE) != 0;
+                if (populated) {
+                    synchronized (this) {
+                        saveActiveSongs();
+                        if (purgeMissing()) {
+                            broadcastChangedSongs();
                         }
                     }
+                }
 
-                    // Revert to the order the songs were saved in.
-                    Collections.sort(songs, new FlagComparator());
+                synchronized (mHydrating) {
+                    mHydrating.remove(songs.getId(index));
+                }
 
-                    mSongs = songs;
+                // A new version, even without a change, so the rows are bound again
+                if (populated) {
+                    changed();
                 }
+                break;
+            }
+            default: {
+                break;
             }
+        }
+        return true;
+    }
+
+    /**
+     * Populates up to HYDRATE_PAGE_SIZE unpopulated songs in the range with
+     * a single query; the caller holds the lock.
+     *
+     * @param songs The queue to populate, or a frozen copy of it
+     * @param from The first position, inclusive
+     * @param to The last position, exclusive
+     *
+     * @return The number of songs looked up
+     */
+    private int hydrateRange(FpTrackQueue songs, int from, int to) {
+        long[] page = collectPage(songs, from, to);
+        if (page.length == 0) {
+            return 0;
+        }
+        return fillPage(songs, page, queryPage(page));
+    }
 
-            mCurrentPos = Math.min(mSongs == null ? 0 : mSongs.size(), Math.abs(in.readInt()));
-            mFinishAction = in.readInt();
-            mShuffleMode = in.readInt();
+    /**
+     * Like hydrateRange(), but only holds the lock to pick the page and to
+     * fill it, not during the query; the caller does not hold the lock.
+     *
+     * @return The number of songs looked up
+     */
+    private int hydrateRangeUnlocked(FpTrackQueue songs, int from, int to) {
+        long[] page;
+        synchronized (this) {
+            page = collectPage(songs, from, to);
+        }
+        if (page.length == 0) {
+            return 0;
+        }
 
-            // Guard against corruption
-            if (mFinishAction < 0 || mFinishAction >= REPEAT_ICONS.length) {
-                mFinishAction = 0;
+        Cursor cursor = queryPage(page);
+        synchronized (this) {
+            return fillPage(songs, page, cursor);
+        }
+    }
+
+    /**
+     * Returns the distinct ids of up to HYDRATE_PAGE_SIZE unpopulated songs
+     * of the range, sorted; the caller holds the lock.
+     */
+    private long[] collectPage(FpTrackQueue songs, int from, int to) {
+        from = Math.max(0, from);
+        to = Math.min(songs.size(), to);
+
+        long[] page = new long[Math.min(HYDRATE_PAGE_SIZE, Math.max(0, to - from))];
+        int count = 0;
+        for (int i = from; i < to && count < page.length; ++i) {
+            if (!songs.isFilled(i) && !songs.isMissing(i)) {
+                page[count++] = songs.getId(i);
             }
-            if (mShuffleMode < 0 || mShuffleMode >= SHUFFLE_ICONS.length) {
-                mShuffleMode = 0;
+        }
+
+        // Sort the ids---this is the order the query will return its
+        // results in---and drop the repeated ones
+        Arrays.sort(page, 0, count);
+        int distinct = 0;
+        for (int i = 0; i != count; ++i) {
+            if (i == 0 || page[i] != page[i - 1]) {
+                page[distinct++] = page[i];
             }
         }
+        return Arrays.copyOf(page, distinct);
     }
 
     /**
-     * Writes the current songs and state to the given stream.
+     * Queries the MediaStore for the songs of a page, sorted by id
+     *
+     * @return The cursor, or null on failure
+     */
+    private Cursor queryPage(long[] page) {
+        // Fill the selection with the ids of the page
+        StringBuilder selection = new StringBuilder("_ID IN (");
+        for (int i = 0; i != page.length; ++i) {
+            if (i != 0) {
+                selection.append(',');
+            }
+            selection.append(page[i]);
+        }
+        selection.append(')');
+
+        ContentResolver resolver = mContext.getContentResolver();
+        Uri media = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+
+        return FpUtilsMedia.queryResolver(resolver, media, FpTrack.FILLED_PROJECTION, selection.toString(), null, MediaStore.MediaColumns._ID);
+    }
+
+    /**
+     * Populates the songs of a page from the query and closes it; the ids
+     * the query did not return are marked as missing. The caller holds the
+     * lock.
+     *
+     * @return The number of ids looked up, 0 if the query failed
+     */
+    private int fillPage(FpTrackQueue songs, long[] page, Cursor cursor) {
+        if (cursor == null) {
+            return 0;
+        }
+        songs.fill(page, cursor);
+        cursor.close();
+        return page.length;
+    }
+
+    /**
+     * Populates the song at the position if needed; the caller holds the lock.
+     *
+     * @return The song, or null if it is missing from the MediaStore
+     */
+    private FpTrack hydrated(int pos) {
+        if (!mSongs.isFilled(pos)) {
+            hydrateRange(mSongs, pos, pos + HYDRATE_PAGE_SIZE);
+            if (!mSongs.isFilled(pos)) {
+                return null;
+            }
+        }
+        return mSongs.get(pos);
+    }
+
+    /**
+     * Removes the songs that were not found in the MediaStore; the caller
+     * holds the lock.
+     *
+     * @return True if songs were removed
+     */
+    private boolean purgeMissing() {
+        if (!mSongs.hasMissing()) {
+            return false;
+        }
+
+        for (int i = mSongs.size(); --i != -1;) {
+            if (mSongs.isMissing(i)) {
+                mSongs.remove(i);
+                recordRemove(i, 1);
+                if (i < mCurrentPos) {
+                    mCurrentPos--;
+                }
+            }
+        }
+
+        if (mCurrentPos >= mSongs.size()) {
+            mCurrentPos = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Writes the current songs, in base order, and state to the given
+     * stream. The play order is saved with getOrder().
      *
      * @param out The stream to write to.
      */
     public void writeState(DataOutputStream out) throws IOException {
         synchronized (this) {
-            ArrayList<FpTrack> songs = mSongs;
+            FpTrackQueue songs = mSongs;
 
             int size = songs.size();
             out.writeInt(size);
 
             for (int i = 0; i != size; ++i) {
-                FpTrack song = songs.get(i);
-                if (song == null) {
-                    out.writeLong(-1);
-                } else {
-                    out.writeLong(song.id);
-                    out.writeInt(song.flags);
-                }
+                out.writeLong(songs.getBaseId(i));
+                out.writeInt(songs.getBaseFlags(i));
             }
 
             out.writeInt(mCurrentPos);
@@ -419,6 +791,16 @@ public final class FpTrackTimeline {
         }
     }
 
+    /**
+     * Returns the play order over the base order written by
+     * writeState(DataOutputStream), null when not shuffled.
+     */
+    public int[] getOrder() {
+        synchronized (this) {
+            return mSongs.getOrder();
+        }
+    }
+
     /**
      * Sets the current callback to <code>callback</code>.
      */
@@ -426,6 +808,13 @@ public final class FpTrackTimeline {
         mCallback = callback;
     }
 
+    /**
+     * Sets the journal that records the timeline mutations.
+     */
+    public void setJournal(FpTrackJournal journal) {
+        mJournal = journal;
+    }
+
     /**
      * Return the current shuffle mode.
      *
@@ -457,11 +846,12 @@ public final class FpTrackTimeline {
 
         synchronized (this) {
             saveActiveSongs();
+
             mShuffleMode = mode;
             if (mode != SHUFFLE_NONE && mFinishAction != FINISH_RANDOM && !mSongs.isEmpty()) {
-                ArrayList<FpTrack> songs = getShuffledTimeline(false);
-                mCurrentPos = songs.indexOf(mSavedCurrent);
-                mSongs = songs;
+                mCurrentPos = permute(getShufflePermutation(false));
+            } else if (mode == SHUFFLE_NONE && !mSongs.isEmpty()) {
+                restoreOrder();
             }
             
             // Get the context
@@ -502,6 +892,9 @@ public final class FpTrackTimeline {
     public void setFinishAction(int action) {
         saveActiveSongs();
         mFinishAction = action;
+        if (action == FINISH_RANDOM) {
+            mRandom.prefetch();
+        }
 
         // Get the context
         Context context = ActivityCommon.getContext();
@@ -537,25 +930,74 @@ public final class FpTrackTimeline {
     }
 
     /**
-     * Returns a shuffled (according to mShuffleMode) version
-     * of the timeline. The returned result will get cached
+     * Returns a shuffle permutation (according to mShuffleMode) of the
+     * timeline. The returned result will get cached until the timeline
+     * changes; the caller holds the lock.
      *
      * @param cached the function may return a cached version if true
      *
-     * @return a *copy* of a shuffled version of the timeline
+     * @return the song at position i of the shuffled timeline is
+     * mSongs.get(permutation[i])
      */
-    private ArrayList<FpTrack> getShuffledTimeline(boolean cached) {
-        if (cached == false) {
-            mShuffleCache = null;
+    private int[] getShufflePermutation(boolean cached) {
+        if (!cached || mShuffleCache == null || mShuffleTicket != mModCount) {
+            int size = mSongs.size();
+            if (mShuffleMode == SHUFFLE_ALBUMS) {
+                // The albums come with the metadata: populate the songs
+                // the background hydration did not reach yet
+                for (int pos = nextUnfilled(mSongs, 0); pos != -1; pos = nextUnfilled(mSongs, pos)) {
+                    if (hydrateRange(mSongs, pos, size) == 0) {
+                        break;
+                    }
+                }
+
+                long[] albumIds = new long[size];
+                int[] trackNumbers = new int[size];
+                mSongs.getAlbumOrder(albumIds, trackNumbers);
+                mShuffleCache = FpUtilsMedia.shufflePermutation(albumIds, trackNumbers);
+            } else {
+                mShuffleCache = FpUtilsMedia.shufflePermutation(size);
+            }
+            mShuffleTicket = mModCount;
+        }
+        return mShuffleCache;
+    }
+
+    /**
+     * Rearranges the play order, the base order is kept; the caller holds
+     * the lock.
+     *
+     * @param permutation The song at position i becomes mSongs.get(permutation[i])
+     *
+     * @return The new position of the current song
+     */
+    private int permute(int[] permutation) {
+        int position = 0;
+        for (int i = 0; i != permutation.length; ++i) {
+            if (permutation[i] == mCurrentPos) {
+                position = i;
+                break;
+            }
         }
+        mSongs.shuffle(permutation);
+        mShuffleCache = null;
+        recordShuffle(permutation);
+        return position;
+    }
 
-        if (mShuffleCache == null) {
-            ArrayList<FpTrack> songs = new ArrayList<FpTrack>(mSongs);
-            FpUtilsMedia.shuffle(songs, mShuffleMode == SHUFFLE_ALBUMS);
-            mShuffleCache = songs;
-            mShuffleTicket = mSongs.hashCode();
+    /**
+     * Puts the timeline back in its base order, keeping the current song;
+     * the caller holds the lock.
+     */
+    private void restoreOrder() {
+        int position = mSongs.getBaseIndex(Math.min(mCurrentPos, mSongs.size() - 1));
+        int[] permutation = mSongs.unshuffle();
+        if (permutation == null) {
+            return;
         }
-        return new ArrayList<FpTrack>(mShuffleCache);
+        mCurrentPos = position;
+        mShuffleCache = null;
+        recordUnshuffle(permutation);
     }
 
     /**
@@ -565,10 +1007,17 @@ public final class FpTrackTimeline {
     private void reshuffleTimeline() {
         synchronized (this) {
             saveActiveSongs();
-            ArrayList<FpTrack> songs = getShuffledTimeline(false);
-            int newPosition = songs.indexOf(mSavedCurrent);
-            Collections.swap(songs, newPosition, mCurrentPos);
-            mSongs = songs;
+
+            // Swap the current song back into its position
+            int[] permutation = getShufflePermutation(false).clone();
+            for (int i = 0; i != permutation.length; ++i) {
+                if (permutation[i] == mCurrentPos) {
+                    permutation[i] = permutation[mCurrentPos];
+                    permutation[mCurrentPos] = mCurrentPos;
+                    break;
+                }
+            }
+            permute(permutation);
             broadcastChangedSongs();
         }
         changed();
@@ -583,10 +1032,10 @@ public final class FpTrackTimeline {
     public FpTrack getSong(int delta) {
         Assert.assertTrue(delta >= -1 && delta <= 1);
 
-        ArrayList<FpTrack> timeline = mSongs;
         FpTrack song;
 
         synchronized (this) {
+            FpTrackQueue timeline = mSongs;
             int pos = mCurrentPos + delta;
             int size = timeline.size();
 
@@ -594,18 +1043,25 @@ public final class FpTrackTimeline {
                 if (size == 0 || mFinishAction == FINISH_RANDOM) {
                     return null;
                 }
-                song = timeline.get(Math.max(0, size - 1));
+                song = hydrated(Math.max(0, size - 1));
             } else {
                 if (pos > size) {
                     return null;
                 } else {
                     if (pos == size) {
                         if (mFinishAction == FINISH_RANDOM) {
-                            song = FpUtilsMedia.randomSong(mContext.getContentResolver());
+                            if (mRandomPaused) {
+                                return null;
+                            }
+                            song = mRandom.poll();
                             if (song == null) {
+                                // Nothing prefetched yet: the song is
+                                // broadcast once the supplier has it
+                                mRandomWaiting = true;
                                 return null;
                             }
                             timeline.add(song);
+                            recordAdd(size, timeline.subList(size, size + 1));
                             // Keep the queue at 20 items to avoid growing forever
                             // Note that we do not broadcast the addition of this song, as it
                             // was virtually 'always there'
@@ -616,14 +1072,14 @@ public final class FpTrackTimeline {
                                 return null;
                             } else {
                                 if (mShuffleMode != SHUFFLE_NONE) {
-                                    song = getShuffledTimeline(true).get(0);
+                                    song = hydrated(getShufflePermutation(true)[0]);
                                 } else {
-                                    song = timeline.get(0);
+                                    song = hydrated(0);
                                 }
                             }
                         }
                     } else {
-                        song = timeline.get(pos);
+                        song = hydrated(pos);
                     }
                 }
             }
@@ -649,7 +1105,7 @@ public final class FpTrackTimeline {
 
         if (mFinishAction != FINISH_RANDOM && pos == mSongs.size()) {
             if (mShuffleMode != SHUFFLE_NONE && !mSongs.isEmpty()) {
-                mSongs = getShuffledTimeline(true);
+                permute(getShufflePermutation(true));
             }
 
             pos = 0;
@@ -686,6 +1142,9 @@ public final class FpTrackTimeline {
         FpTrack song = null;
         synchronized (this) {
             if (mSongs.size() > id) {
+                if (!mSongs.isFilled(id)) {
+                    hydrateRange(mSongs, id, id + HYDRATE_PAGE_SIZE);
+                }
                 song = mSongs.get(id);
             }
         }
@@ -736,6 +1195,25 @@ public final class FpTrackTimeline {
      * @return The number of songs that were added.
      */
     public int addSongs(Context context, FpUtilsMedia.QueryTask query) {
+        return addSongs(context, query, null);
+    }
+
+    /**
+     * Run the given query and add the results to the song timeline.
+     *
+     * The first song (the jump target, if any) is added and broadcast on its
+     * own, so playback can start right away; the other songs follow in
+     * batches of ENQUEUE_BATCH_SIZE, each one published as a range insert.
+     *
+     * @param context A context to use.
+     * @param query The query to be run. The mode variable must be initialized
+     * to one of FpTrackTimeline.MODE_*. The type and data variables may also need
+     * to be initialized depending on the given mode.
+     * @param onFirstSong Run once the first song was added, may be null
+     *
+     * @return The number of songs that were added.
+     */
+    public int addSongs(Context context, FpUtilsMedia.QueryTask query, Runnable onFirstSong) {
         Cursor cursor = query.runQuery(context.getContentResolver());
         if (cursor == null) {
             return 0;
@@ -761,8 +1239,40 @@ public final class FpTrackTimeline {
             return 0;
         }
 
-        ArrayList<FpTrack> timeline = mSongs;
+        // Order of the rows in the timeline
+        int[] order = getAddOrder(cursor, count);
+
+        // The jump target goes first, the songs before it go last
+        int jumpRow = getJumpRow(cursor, count, mode, type, data);
+        if (jumpRow != -1) {
+            int i = 0;
+            while (order[i] != jumpRow) {
+                i++;
+            }
+            int[] rotated = new int[count];
+            System.arraycopy(order, i, rotated, 0, count - i);
+            System.arraycopy(order, 0, rotated, count - i, i);
+            order = rotated;
+        }
+
+        // The first song that can be populated
+        FpTrack first = null;
+        int next = 0;
+        while (first == null && next < count) {
+            cursor.moveToPosition(order[next++]);
+            FpTrack song = new FpTrack(-1);
+            song.populate(cursor);
+            if (song.isFilled()) {
+                first = song;
+            }
+            // else: FpTrack vanished from device for some reason: we are silently skipping it.
+        }
+
+        // Key of the last added entry, where the next batch goes after
+        int last;
+        int insertPos;
         synchronized (this) {
+            FpTrackQueue timeline = mSongs;
             saveActiveSongs();
 
             switch (mode) {
@@ -773,13 +1283,15 @@ public final class FpTrackTimeline {
                     if (mFinishAction == FINISH_RANDOM) {
                         int j = timeline.size();
                         while (--j > mCurrentPos) {
-                            if (timeline.get(j).isRandom()) {
+                            if ((timeline.getFlags(j) & FpTrack.FLAG_RANDOM) != 0) {
                                 timeline.remove(j);
+                                recordRemove(j, 1);
                             }
                         }
                     }
                     break;
                 case MODE_FLUSH_AND_PLAY_NEXT:
+                    recordRemove(mCurrentPos + 1, timeline.size() - mCurrentPos - 1);
                     timeline.subList(mCurrentPos + 1, timeline.size()).clear();
                     break;
                 case MODE_PLAY:
@@ -787,14 +1299,13 @@ public final class FpTrackTimeline {
                 case MODE_PLAY_ID_FIRST:
                     timeline.clear();
                     mCurrentPos = 0;
+                    recordReset();
                     break;
                 default:
                     throw new IllegalArgumentException("Invalid mode: " + mode);
             }
 
             int start = timeline.size();
-
-            FpTrack jumpSong = null;
             int addAtPos = mCurrentPos + 1;
 
             /*
@@ -806,67 +1317,137 @@ public final class FpTrackTimeline {
                 addAtPos = start;
             }
 
-            for (int j = 0; j != count; ++j) {
-                cursor.moveToPosition(j);
+            last = -1;
+            if (first != null) {
+                timeline.add(addAtPos, first);
+                recordAdd(addAtPos, timeline.subList(addAtPos, addAtPos + 1));
+                last = timeline.getKey(addAtPos);
+                added++;
+                addAtPos++;
+            }
+            insertPos = addAtPos;
+
+            broadcastChangedSongs();
+        }
+
+        changed();
+
+        if (first == null) {
+            cursor.close();
+            return 0;
+        }
+        if (onFirstSong != null) {
+            onFirstSong.run();
+        }
 
+        // Stream the other songs in batches
+        while (next < count) {
+            ArrayList<FpTrack> batch = new ArrayList<FpTrack>(Math.min(ENQUEUE_BATCH_SIZE, count - next));
+            while (next < count && batch.size() < ENQUEUE_BATCH_SIZE) {
+                cursor.moveToPosition(order[next++]);
                 FpTrack song = new FpTrack(-1);
                 song.populate(cursor);
-                if (song.isFilled() == false) {
-                    // FpTrack vanished from device for some reason: we are silently skipping it.
-                    continue;
+                if (song.isFilled()) {
+                    batch.add(song);
                 }
+            }
+            if (batch.isEmpty()) {
+                continue;
+            }
 
-                timeline.add(addAtPos++, song);
-                added++;
+            synchronized (this) {
+                FpTrackQueue timeline = mSongs;
+                saveActiveSongs();
 
-                if (jumpSong == null) {
-                    if ((mode == MODE_PLAY_POS_FIRST || mode == MODE_ENQUEUE_POS_FIRST) && j == data) {
-                        jumpSong = song;
-                    } else {
-                        if (mode == MODE_PLAY_ID_FIRST || mode == MODE_ENQUEUE_ID_FIRST) {
-                            long id;
-                            switch (type) {
-                                case FpUtilsMedia.TYPE_ARTIST:
-                                    id = song.artistId;
-                                    break;
-                                case FpUtilsMedia.TYPE_ALBUM:
-                                    id = song.albumId;
-                                    break;
-                                case FpUtilsMedia.TYPE_SONG:
-                                    id = song.id;
-                                    break;
-                                default:
-                                    throw new IllegalArgumentException("Invalid type: " + type);
-                            }
-                            if (id == data) {
-                                jumpSong = song;
-                            }
-                        }
+                // Other changes may have moved the insertion point
+                if (insertPos > timeline.size() || insertPos == 0 || timeline.getKey(insertPos - 1) != last) {
+                    insertPos = timeline.indexOfKey(last) + 1;
+                    if (insertPos == 0) {
+                        insertPos = timeline.size();
                     }
                 }
+
+                timeline.addAll(insertPos, batch);
+                recordAdd(insertPos, timeline.subList(insertPos, insertPos + batch.size()));
+                insertPos += batch.size();
+                last = timeline.getKey(insertPos - 1);
+                added += batch.size();
+
+                broadcastChangedSongs();
             }
 
-            cursor.close();
+            changed();
+        }
+
+        cursor.close();
+
+        return added;
+    }
 
-            if (mShuffleMode != SHUFFLE_NONE) {
-                FpUtilsMedia.shuffle(timeline.subList(start, timeline.size()), mShuffleMode == SHUFFLE_ALBUMS);
+    /**
+     * Returns the order in which the rows of a query are added, according
+     * to the shuffle mode. Only the album and track columns are read.
+     */
+    private int[] getAddOrder(Cursor cursor, int count) {
+        switch (mShuffleMode) {
+            case SHUFFLE_SONGS:
+                return FpUtilsMedia.shufflePermutation(count);
+
+            case SHUFFLE_ALBUMS: {
+                long[] albumIds = new long[count];
+                int[] trackNumbers = new int[count];
+                for (int j = 0; j != count; ++j) {
+                    cursor.moveToPosition(j);
+                    albumIds[j] = cursor.getLong(5);
+                    trackNumbers[j] = cursor.getInt(8);
+                }
+                return FpUtilsMedia.shufflePermutation(albumIds, trackNumbers);
             }
 
-            if (jumpSong != null) {
-                int jumpPos = timeline.indexOf(jumpSong);
-                if (jumpPos != start) {
-                    // Get the sublist twice to avoid a ConcurrentModificationException.
-                    timeline.addAll(timeline.subList(start, jumpPos));
-                    timeline.subList(start, jumpPos).clear();
+            default: {
+                int[] order = new int[count];
+                for (int j = 0; j != count; ++j) {
+                    order[j] = j;
                 }
+                return order;
             }
+        }
+    }
 
-            broadcastChangedSongs();
+    /**
+     * Returns the row of the song to jump to, -1 if none. Only the id
+     * columns are read.
+     */
+    private int getJumpRow(Cursor cursor, int count, int mode, int type, long data) {
+        if (mode == MODE_PLAY_POS_FIRST || mode == MODE_ENQUEUE_POS_FIRST) {
+            return data >= 0 && data < count ? (int) data : -1;
+        }
+        if (mode != MODE_PLAY_ID_FIRST && mode != MODE_ENQUEUE_ID_FIRST) {
+            return -1;
         }
 
-        changed();
+        int column;
+        switch (type) {
+            case FpUtilsMedia.TYPE_ARTIST:
+                column = 6;
+                break;
+            case FpUtilsMedia.TYPE_ALBUM:
+                column = 5;
+                break;
+            case FpUtilsMedia.TYPE_SONG:
+                column = 0;
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid type: " + type);
+        }
 
-        return added;
+        for (int j = 0; j != count; ++j) {
+            cursor.moveToPosition(j);
+            if (cursor.getLong(column) == data) {
+                return j;
+            }
+        }
+        return -1;
     }
 
     /**
@@ -874,14 +1455,47 @@ public final class FpTrackTimeline {
      */
     private void shrinkQueue(int len) {
         synchronized (this) {
-            while (mCurrentPos > len) {
-                mSongs.remove(0);
-                mCurrentPos--;
+            int excess = mCurrentPos - len;
+            if (excess > 0) {
+                mSongs.subList(0, excess).clear();
+                recordRemove(0, excess);
+                mCurrentPos -= excess;
+            }
+        }
+        changed();
+    }
+
+    /**
+     * Called by the random supplier once it has songs: broadcasts the
+     * random songs that could not be supplied before.
+     */
+    private void randomSongsReady() {
+        synchronized (this) {
+            if (!mRandomWaiting || mFinishAction != FINISH_RANDOM) {
+                return;
             }
+            mRandomWaiting = false;
+
+            // Save the missing songs as they were reported: missing
+            mRandomPaused = true;
+            saveActiveSongs();
+            mRandomPaused = false;
+            broadcastChangedSongs();
         }
+
         changed();
     }
 
+    /**
+     * The library changed: drop the prefetched random songs.
+     */
+    public void onMediaChange() {
+        mRandom.clear();
+        if (mFinishAction == FINISH_RANDOM) {
+            mRandom.prefetch();
+        }
+    }
+
     /**
      * Clear the song queue.
      */
@@ -889,6 +1503,7 @@ public final class FpTrackTimeline {
         synchronized (this) {
             saveActiveSongs();
             if (mCurrentPos + 1 < mSongs.size()) {
+                recordRemove(mCurrentPos + 1, mSongs.size() - mCurrentPos - 1);
                 mSongs.subList(mCurrentPos + 1, mSongs.size()).clear();
             }
             broadcastChangedSongs();
@@ -903,6 +1518,7 @@ public final class FpTrackTimeline {
     public void emptyQueue() {
         synchronized (this) {
             saveActiveSongs();
+            recordRemove(0, mSongs.size());
             mSongs.clear();
             mCurrentPos = 0;
             broadcastChangedSongs();
@@ -960,22 +1576,74 @@ public final class FpTrackTimeline {
      * @param id The MediaStore id of the song to remove.
      */
     public void removeSong(long id) {
+        removeSongs(new long[] {id});
+    }
+
+    /**
+     * Remove every occurrence of the given ids from the timeline, in a
+     * single pass with a single broadcast.
+     *
+     * @param ids The MediaStore ids of the songs to remove.
+     *
+     * @return The number of removed timeline entries.
+     */
+    public int removeSongs(long[] ids) {
+        int removed = 0;
         synchronized (this) {
+            FpTrackQueue songs = mSongs;
+            int size = songs.size();
+
+            // Mark the positions: a single id needs a single scan, more ids
+            // go through an index built once for this call
+            boolean[] remove = new boolean[size];
+            if (ids.length == 1) {
+                for (int i = 0; i != size; ++i) {
+                    if (songs.getId(i) == ids[0]) {
+                        remove[i] = true;
+                        removed++;
+                    }
+                }
+            } else if (ids.length > 1) {
+                FpTrackIndex index = new FpTrackIndex(songs.getIds());
+                for (long id : ids) {
+                    for (int i = index.first(id); i != -1; i = index.next(i)) {
+                        if (!remove[i]) {
+                            remove[i] = true;
+                            removed++;
+                        }
+                    }
+                }
+            }
+            if (removed == 0) {
+                return 0;
+            }
+
             saveActiveSongs();
 
-            ArrayList<FpTrack> songs = mSongs;
-            ListIterator<FpTrack> it = songs.listIterator();
-            while (it.hasNext()) {
-                int i = it.nextIndex();
-                if (FpTrack.getId(it.next()) == id) {
-                    if (i < mCurrentPos) {
-                        --mCurrentPos;
+            // Record the removed runs from the back, so the positions stay valid
+            for (int i = size; --i != -1;) {
+                if (remove[i]) {
+                    int end = i;
+                    while (i > 0 && remove[i - 1]) {
+                        i--;
                     }
-                    it.remove();
+                    recordRemove(i, end - i + 1);
                 }
             }
 
-            if (getSong(1) == null) {
+            // Compact the timeline
+            int before = 0;
+            for (int i = Math.min(mCurrentPos, size); --i != -1;) {
+                if (remove[i]) {
+                    before++;
+                }
+            }
+            songs.removeMarked(remove);
+            mCurrentPos -= before;
+
+            // Wrap around if the current song was the last one; getSong(1)
+            // can not tell, it is null while no random song is ready
+            if (mCurrentPos >= songs.size()) {
                 mCurrentPos = 0;
             }
 
@@ -983,6 +1651,7 @@ public final class FpTrackTimeline {
         }
 
         changed();
+        return removed;
     }
 
     /**
@@ -992,7 +1661,7 @@ public final class FpTrackTimeline {
      */
     public void removeSongPosition(int pos) {
         synchronized (this) {
-            ArrayList<FpTrack> songs = mSongs;
+            FpTrackQueue songs = mSongs;
 
             if (songs.size() <= pos) // may happen if we race with purge()
             {
@@ -1002,10 +1671,11 @@ public final class FpTrackTimeline {
             saveActiveSongs();
 
             songs.remove(pos);
+            recordRemove(pos, 1);
             if (pos < mCurrentPos) {
                 mCurrentPos--;
             }
-            if (getSong(1) == null) // wrap around if this was the last song
+            if (mCurrentPos >= songs.size()) // wrap around if this was the last song
             {
                 mCurrentPos = 0;
             }
@@ -1023,7 +1693,7 @@ public final class FpTrackTimeline {
      */
     public void moveSongPosition(int from, int to) {
         synchronized (this) {
-            ArrayList<FpTrack> songs = mSongs;
+            FpTrackQueue songs = mSongs;
 
             if (songs.size() <= from || songs.size() <= to) // may happen if we race with purge()
             {
@@ -1032,8 +1702,8 @@ public final class FpTrackTimeline {
 
             saveActiveSongs();
 
-            FpTrack tmp = songs.remove(from);
-            songs.add(to, tmp);
+            songs.move(from, to);
+            recordMove(from, to);
 
             if (mCurrentPos == from) {
                 mCurrentPos = to; // active song was dragged to 'to'
@@ -1053,16 +1723,150 @@ public final class FpTrackTimeline {
     }
 
     /**
-     * Broadcasts that the timeline state has changed.
+     * Returns the changes recorded since the last published version;
+     * the caller holds the lock.
+     */
+    private FpTrackTimelineDiff pendingDiff() {
+        if (mDiff == null) {
+            mDiff = new FpTrackTimelineDiff(mVersion, mPublishedPos, mPublishedSize);
+        }
+        return mDiff;
+    }
+
+    /**
+     * Records inserted songs in the journal and the pending diff; the
+     * caller holds the lock.
+     */
+    private void recordAdd(int position, List<FpTrack> songs) {
+        if (mJournal != null) {
+            mJournal.add(position, songs);
+        }
+        mModCount++;
+        pendingDiff().insert(position, songs);
+    }
+
+    /**
+     * Records removed songs in the journal and the pending diff; the
+     * caller holds the lock.
+     */
+    private void recordRemove(int position, int count) {
+        if (mJournal != null) {
+            mJournal.remove(position, count);
+        }
+        mModCount++;
+        pendingDiff().remove(position, count);
+    }
+
+    /**
+     * Records a moved song in the journal and the pending diff; the
+     * caller holds the lock.
+     */
+    private void recordMove(int from, int to) {
+        if (mJournal != null) {
+            mJournal.move(from, to);
+        }
+        mModCount++;
+        pendingDiff().move(from, to);
+    }
+
+    /**
+     * Records a shuffled play order in the journal and the pending diff;
+     * the caller holds the lock.
+     */
+    private void recordShuffle(int[] permutation) {
+        if (mJournal != null) {
+            mJournal.shuffle(permutation);
+        }
+        mModCount++;
+        pendingDiff().permute(permutation);
+    }
+
+    /**
+     * Records the return to the base order in the journal and the pending
+     * diff; the caller holds the lock.
+     */
+    private void recordUnshuffle(int[] permutation) {
+        if (mJournal != null) {
+            mJournal.unshuffle();
+        }
+        mModCount++;
+        pendingDiff().permute(permutation);
+    }
+
+    /**
+     * The timeline was rebuilt: the journal needs a new snapshot and
+     * readers need to start over.
+     */
+    private void recordReset() {
+        if (mJournal != null) {
+            mJournal.reset();
+        }
+        mModCount++;
+        pendingDiff().reset();
+    }
+
+    /**
+     * Returns true if there are changes that were not published yet; the
+     * caller holds the lock.
+     */
+    private boolean isDirty() {
+        return mDiff != null || mCurrentPos != mPublishedPos;
+    }
+
+    /**
+     * Seals the pending changes into a new version; the caller holds the
+     * lock.
+     */
+    private void publish() {
+        FpTrackTimelineDiff diff = pendingDiff();
+        mDiff = null;
+
+        diff.publish(++mVersion, mCurrentPos, mSongs.size());
+        mPublishedPos = mCurrentPos;
+        mPublishedSize = mSongs.size();
+        mSnapshot = null;
+        mPublished.add(diff);
+    }
+
+    /**
+     * Returns an immutable snapshot of the timeline. The latest snapshot is
+     * cached, so readers only pay for a copy once per version.
+     */
+    public FpTrackTimelineSnapshot getSnapshot() {
+        FpTrackTimelineSnapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            synchronized (this) {
+                // The content must match the version
+                if (isDirty()) {
+                    publish();
+                }
+                snapshot = mSnapshot;
+                if (snapshot == null) {
+                    snapshot = new FpTrackTimelineSnapshot(this, mSongs.freeze(), mCurrentPos, mVersion);
+                    mSnapshot = snapshot;
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Publishes the changes and broadcasts them.
      */
     private void changed() {
-        // Invalidate shuffle cache if the timeline *contents* changed in the meantime
-        if (mShuffleCache != null && mShuffleTicket != mSongs.hashCode()) {
-            mShuffleCache = null;
+        ArrayList<FpTrackTimelineDiff> diffs;
+        synchronized (this) {
+            if (isDirty() || mPublished.isEmpty()) {
+                publish();
+            }
+            diffs = mPublished;
+            mPublished = new ArrayList<FpTrackTimelineDiff>();
         }
 
         if (mCallback != null) {
-            mCallback.timelineChanged();
+            for (FpTrackTimelineDiff diff : diffs) {
+                mCallback.timelineChanged(diff);
+            }
         }
     }
 
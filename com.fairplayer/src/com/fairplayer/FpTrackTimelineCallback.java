@@ -31,8 +31,10 @@ public interface FpTrackTimelineCallback {
 
     /**
      * Notification about a change in the timeline
+     *
+     * @param diff The changes since the previous timeline version
      */
-    void onTimelineChanged();
+    void onTimelineChanged(FpTrackTimelineDiff diff);
 
     /**
      * Updates song at 'delta'
@@ -0,0 +1,233 @@
+/**
+ * Copyright 2016 Mark Jivko https://markjivko.com
+ *
+ * Licensed under the GNU General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://gnu.org/licenses/gpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Redistributions of files must retain the above copyright notice.
+ */
+package com.fairplayer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes the changes between two timeline versions: the inserted,
+ * removed and moved ranges and the permutations, in the order they were
+ * applied, and the change of the current position.
+ */
+public final class FpTrackTimelineDiff {
+
+    /**
+     * Range types
+     */
+    public static final int TYPE_INSERT = 0;
+    public static final int TYPE_REMOVE = 1;
+    public static final int TYPE_MOVE = 2;
+    public static final int TYPE_PERMUTE = 3;
+
+    /**
+     * A change to a contiguous range of the timeline
+     */
+    public static final class Range {
+
+        /**
+         * One of TYPE_*
+         */
+        public final int type;
+        /**
+         * First position of the range; the source position of a move
+         */
+        public final int position;
+        /**
+         * Number of songs in the range
+         */
+        public final int count;
+        /**
+         * Target position of a move, -1 otherwise
+         */
+        public final int to;
+        /**
+         * The inserted songs, null for other types
+         */
+        public final FpTrack[] songs;
+        /**
+         * Of a permutation, the old position of the song now at position i,
+         * null for other types
+         */
+        public final int[] order;
+
+        Range(int type, int position, int count, int to, FpTrack[] songs, int[] order) {
+            this.type = type;
+            this.position = position;
+            this.count = count;
+            this.to = to;
+            this.songs = songs;
+            this.order = order;
+        }
+    }
+
+    /**
+     * The ranges, in the order they were applied
+     */
+    private final ArrayList<Range> mRanges = new ArrayList<Range>();
+    /**
+     * True if the timeline was rebuilt and the ranges do not apply
+     */
+    private boolean mReset;
+    /**
+     * Versions before and after the change
+     */
+    private final long mFromVersion;
+    private long mToVersion;
+    /**
+     * Current position before and after the change
+     */
+    private final int mOldPosition;
+    private int mNewPosition;
+    /**
+     * Number of songs before and after the change
+     */
+    private final int mOldLength;
+    private int mNewLength;
+
+    FpTrackTimelineDiff(long fromVersion, int oldPosition, int oldLength) {
+        mFromVersion = fromVersion;
+        mToVersion = fromVersion;
+        mOldPosition = oldPosition;
+        mNewPosition = oldPosition;
+        mOldLength = oldLength;
+        mNewLength = oldLength;
+    }
+
+    /**
+     * Record inserted songs
+     */
+    void insert(int position, List<FpTrack> songs) {
+        if (!mReset && !songs.isEmpty()) {
+            mRanges.add(new Range(TYPE_INSERT, position, songs.size(), -1, songs.toArray(new FpTrack[songs.size()]), null));
+        }
+    }
+
+    /**
+     * Record removed songs
+     */
+    void remove(int position, int count) {
+        if (!mReset && count > 0) {
+            mRanges.add(new Range(TYPE_REMOVE, position, count, -1, null, null));
+        }
+    }
+
+    /**
+     * Record a moved song
+     */
+    void move(int from, int to) {
+        if (!mReset && from != to) {
+            mRanges.add(new Range(TYPE_MOVE, from, 1, to, null, null));
+        }
+    }
+
+    /**
+     * Record a reordering of the whole timeline
+     *
+     * @param order The old position of the song now at position i
+     */
+    void permute(int[] order) {
+        if (!mReset && order.length > 0) {
+            mRanges.add(new Range(TYPE_PERMUTE, 0, order.length, -1, null, order));
+        }
+    }
+
+    /**
+     * The timeline was rebuilt
+     */
+    void reset() {
+        mReset = true;
+        mRanges.clear();
+    }
+
+    /**
+     * Seal the diff with the new version
+     */
+    void publish(long toVersion, int newPosition, int newLength) {
+        mToVersion = toVersion;
+        mNewPosition = newPosition;
+        mNewLength = newLength;
+    }
+
+    /**
+     * The ranges, in the order they were applied; empty on reset
+     */
+    public List<Range> getRanges() {
+        return Collections.unmodifiableList(mRanges);
+    }
+
+    /**
+     * Returns true if the timeline was rebuilt; readers should take a new
+     * snapshot instead of applying the ranges
+     */
+    public boolean isReset() {
+        return mReset;
+    }
+
+    /**
+     * Returns true if songs were inserted, removed or moved
+     */
+    public boolean isContentChanged() {
+        return mReset || !mRanges.isEmpty();
+    }
+
+    /**
+     * Returns true if the current position changed
+     */
+    public boolean isPositionChanged() {
+        return mOldPosition != mNewPosition;
+    }
+
+    /**
+     * Number of songs touched by the ranges
+     */
+    public int getChangedCount() {
+        int count = 0;
+        for (Range range : mRanges) {
+            count += range.count;
+        }
+        return count;
+    }
+
+    public long getFromVersion() {
+        return mFromVersion;
+    }
+
+    public long getToVersion() {
+        return mToVersion;
+    }
+
+    public int getOldPosition() {
+        return mOldPosition;
+    }
+
+    public int getNewPosition() {
+        return mNewPosition;
+    }
+
+    public int getOldLength() {
+        return mOldLength;
+    }
+
+    public int getNewLength() {
+        return mNewLength;
+    }
+}
+
+/*EOF*/
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2016 Mark Jivko https://markjivko.com
+ *
+ * Licensed under the GNU General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://gnu.org/licenses/gpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Redistributions of files must retain the above copyright notice.
+ */
+package com.fairplayer;
+
+/**
+ * An immutable view of the timeline at a given version. Snapshots can be
+ * walked from any thread without taking the timeline lock.
+ */
+public final class FpTrackTimelineSnapshot {
+
+    /**
+     * The timeline this snapshot was taken from
+     */
+    private final FpTrackTimeline mTimeline;
+    /**
+     * Frozen copy of the queue, sharing the metadata of the timeline
+     */
+    private final FpTrackQueue mSongs;
+    /**
+     * Position of the current song
+     */
+    private final int mPosition;
+    /**
+     * Timeline version
+     */
+    private final long mVersion;
+
+    FpTrackTimelineSnapshot(FpTrackTimeline timeline, FpTrackQueue songs, int position, long version) {
+        mTimeline = timeline;
+        mSongs = songs;
+        mPosition = position;
+        mVersion = version;
+    }
+
+    /**
+     * The timeline version; matches FpTrackTimelineDiff#getToVersion() of
+     * the change that produced it
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Position of the current song
+     */
+    public int getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Number of songs
+     */
+    public int size() {
+        return mSongs.size();
+    }
+
+    /**
+     * Returns the song at the given position, without waiting: a song
+     * whose metadata is not populated yet is populated in the background,
+     * and a new version is published once it is. Safe on the UI thread.
+     *
+     * @return A new view of the song, or null if it is not populated yet
+     * or missing from the MediaStore
+     */
+    public FpTrack get(int index) {
+        FpTrack song = mSongs.get(index);
+        if (!song.isFilled()) {
+            mTimeline.requestHydrate(mSongs, index);
+            return null;
+        }
+        return song;
+    }
+
+    /**
+     * Returns the song at the given position, populating its metadata
+     * right away if needed; queries the MediaStore, so not for the UI
+     * thread
+     *
+     * @return A new view of the song, or null if it is missing from the
+     * MediaStore
+     */
+    public FpTrack load(int index) {
+        FpTrack song = mSongs.get(index);
+        if (!song.isFilled()) {
+            mTimeline.hydrate(mSongs, index);
+            song = mSongs.get(index);
+            if (!song.isFilled()) {
+                return null;
+            }
+        }
+        return song;
+    }
+
+    /**
+     * Returns the MediaStore id of the song at the given position, without
+     * populating it
+     */
+    public long getId(int index) {
+        return mSongs.getId(index);
+    }
+}
+
+/*EOF*/
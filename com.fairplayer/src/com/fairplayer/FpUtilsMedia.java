@@ -19,14 +19,11 @@ package com.fairplayer;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
 import java.util.zip.CRC32;
 
-import android.annotation.SuppressLint;
 import android.content.ContentResolver;
 import android.database.Cursor;
 import android.net.Uri;
@@ -452,54 +449,134 @@ public class FpUtilsMedia {
     }
 
     /**
-     * Shuffle a FpTrack list using Collections.shuffle().
+     * Shuffle an array using Fisher-Yates algorithm.
+     *
+     * @param list The array. It will be shuffled in place.
+     */
+    public static void shuffle(int[] list) {
+        Random random = getRandom();
+        for (int i = list.length; --i != -1;) {
+            int j = random.nextInt(i + 1);
+            int tmp = list[j];
+            list[j] = list[i];
+            list[i] = tmp;
+        }
+    }
+
+    /**
+     * Shuffle a FpTrack list in place.
      *
      * @param albumShuffle If true, preserve the order of tracks inside albums.
      */
-    @SuppressLint("UseSparseArrays") 
     public static void shuffle(List<FpTrack> list, boolean albumShuffle) {
         int size = list.size();
         if (size < 2) {
             return;
         }
 
-        Random random = getRandom();
-        if (albumShuffle) {
-            List<FpTrack> tempList = new ArrayList<FpTrack>(list);
-            Collections.sort(tempList);
-
-            // Build map of albumId to start index in sorted list
-            Map<Long, Integer> albumStartIndices = new HashMap<Long, Integer>();
-            int index = 0;
-            for (FpTrack song : tempList) {
-                if (!albumStartIndices.containsKey(song.albumId)) {
-                    albumStartIndices.put(song.albumId, index);
-                }
-                index++;
+        int[] permutation = shufflePermutation(list, albumShuffle);
+        FpTrack[] songs = list.toArray(new FpTrack[size]);
+        for (int i = 0; i != size; ++i) {
+            list.set(i, songs[permutation[i]]);
+        }
+    }
+
+    /**
+     * Returns a random permutation of a FpTrack list: the song at position i
+     * of the shuffled list is list.get(permutation[i]). The list is not
+     * changed.
+     *
+     * @param albumShuffle If true, preserve the order of tracks inside albums.
+     */
+    public static int[] shufflePermutation(List<FpTrack> list, boolean albumShuffle) {
+        int size = list.size();
+        if (!albumShuffle) {
+            return shufflePermutation(size);
+        }
+
+        long[] albumIds = new long[size];
+        int[] trackNumbers = new int[size];
+        for (int i = 0; i != size; ++i) {
+            FpTrack song = list.get(i);
+            albumIds[i] = song.albumId;
+            trackNumbers[i] = song.trackNumber;
+        }
+        return shufflePermutation(albumIds, trackNumbers);
+    }
+
+    /**
+     * Returns a random permutation of 0..size-1.
+     */
+    public static int[] shufflePermutation(int size) {
+        int[] permutation = new int[size];
+        for (int i = 0; i != size; ++i) {
+            permutation[i] = i;
+        }
+        shuffle(permutation);
+        return permutation;
+    }
+
+    /**
+     * Returns a random permutation that shuffles albums and keeps the order
+     * of tracks inside each album.
+     *
+     * @param albumIds The album id of each song.
+     * @param trackNumbers The track number of each song.
+     */
+    public static int[] shufflePermutation(long[] albumIds, int[] trackNumbers) {
+        int size = albumIds.length;
+        int[] permutation = new int[size];
+
+        // Distinct album ids, sorted
+        long[] albums = albumIds.clone();
+        Arrays.sort(albums);
+        int albumCount = 0;
+        for (int i = 0; i != size; ++i) {
+            if (i == 0 || albums[i] != albums[i - 1]) {
+                albums[albumCount++] = albums[i];
             }
+        }
 
-            //Extract album list and shuffle
-            List<Long> shuffledAlbums = new ArrayList<Long>(albumStartIndices.keySet());
-            Collections.shuffle(shuffledAlbums, random);
-
-            //Build FpTrack list from album list
-            list.clear();
-            for (Long albumId : shuffledAlbums) {
-                int songIndex = albumStartIndices.get(albumId);
-                FpTrack song = tempList.get(songIndex);
-                do {
-                    list.add(song);
-                    songIndex++;
-                    if (songIndex < size) {
-                        song = tempList.get(songIndex);
-                    } else {
-                        break;
-                    }
-                } while (albumId == song.albumId);
+        // Shuffle the albums
+        int[] albumOrder = new int[albumCount];
+        for (int i = 0; i != albumCount; ++i) {
+            albumOrder[i] = i;
+        }
+        shuffle(albumOrder);
+        int[] albumRank = new int[albumCount];
+        for (int i = 0; i != albumCount; ++i) {
+            albumRank[albumOrder[i]] = i;
+        }
+
+        // Bucket the songs by the rank of their album
+        int[] rankOf = new int[size];
+        int[] bucketStart = new int[albumCount + 1];
+        for (int i = 0; i != size; ++i) {
+            rankOf[i] = albumRank[Arrays.binarySearch(albums, 0, albumCount, albumIds[i])];
+            bucketStart[rankOf[i] + 1]++;
+        }
+        for (int i = 0; i != albumCount; ++i) {
+            bucketStart[i + 1] += bucketStart[i];
+        }
+        int[] next = bucketStart.clone();
+        for (int i = 0; i != size; ++i) {
+            permutation[next[rankOf[i]]++] = i;
+        }
+
+        // Keep the track order inside each album; albums are short
+        for (int b = 0; b != albumCount; ++b) {
+            for (int i = bucketStart[b] + 1; i < bucketStart[b + 1]; ++i) {
+                int index = permutation[i];
+                int track = trackNumbers[index];
+                int j = i - 1;
+                while (j >= bucketStart[b] && trackNumbers[permutation[j]] > track) {
+                    permutation[j + 1] = permutation[j];
+                    j--;
+                }
+                permutation[j + 1] = index;
             }
-        } else {
-            Collections.shuffle(list, random);
         }
+        return permutation;
     }
 
     /**
@@ -625,40 +702,96 @@ public class FpUtilsMedia {
      * @param resolver A ContentResolver to use.
      */
     public static FpTrack randomSong(ContentResolver resolver) {
+        long id = nextRandomId(resolver);
+        if (id == -1) {
+            return null;
+        }
+        return getSongByTypeId(resolver, FpUtilsMedia.TYPE_SONG, id);
+    }
+
+    /**
+     * Returns up to count random songs, fully populated with a single
+     * query. The songs come from the same shuffled list as randomSong().
+     *
+     * @param resolver A ContentResolver to use.
+     * @param count The number of songs to return.
+     */
+    public static ArrayList<FpTrack> randomSongs(ContentResolver resolver, int count) {
+        ArrayList<FpTrack> result = new ArrayList<FpTrack>(count);
+        long[] ids = new long[count];
+        int found = 0;
+        for (int i = 0; i != count; ++i) {
+            long id = nextRandomId(resolver);
+            if (id == -1) {
+                break;
+            }
+            ids[found++] = id;
+        }
+        if (found == 0) {
+            return result;
+        }
+
+        StringBuilder selection = new StringBuilder("_ID IN (");
+        for (int i = 0; i != found; ++i) {
+            if (i != 0) {
+                selection.append(',');
+            }
+            selection.append(ids[i]);
+        }
+        selection.append(')');
+
+        Cursor cursor = queryResolver(resolver, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, FpTrack.FILLED_PROJECTION, selection.toString(), null, null);
+        if (cursor == null) {
+            return result;
+        }
+
+        // Keep the random order
+        FpTrack[] songs = new FpTrack[found];
+        while (cursor.moveToNext()) {
+            FpTrack song = new FpTrack(-1);
+            song.populate(cursor);
+            for (int i = 0; i != found; ++i) {
+                if (ids[i] == song.id && songs[i] == null) {
+                    songs[i] = song;
+                    break;
+                }
+            }
+        }
+        cursor.close();
+
+        for (FpTrack song : songs) {
+            if (song != null && song.isFilled()) {
+                result.add(song);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the next id from the shuffled list of all songs, -1 if the
+     * library is empty.
+     */
+    private static synchronized long nextRandomId(ContentResolver resolver) {
         long[] songs = sAllSongs;
 
         if (songs == null) {
             songs = queryAllSongs(resolver);
             if (songs == null) {
-                return null;
+                return -1;
             }
             sAllSongs = songs;
             sAllSongsIdx = 0;
         } else {
-            if (sAllSongsIdx == sAllSongs.length) {
+            if (sAllSongsIdx >= songs.length) {
                 sAllSongsIdx = 0;
-                shuffle(sAllSongs);
+                shuffle(songs);
             }
         }
 
-        FpTrack result = getSongByTypeId(resolver, FpUtilsMedia.TYPE_SONG, sAllSongs[sAllSongsIdx]);
-        sAllSongsIdx++;
-        return result;
-    }
-
-    /**
-     * Delete the given file or directory recursively.
-     *
-     * @return True if successful; false otherwise.
-     */
-    public static boolean deleteFile(File file) {
-        File[] children = file.listFiles();
-        if (children != null) {
-            for (File child : children) {
-                deleteFile(child);
-            }
+        if (songs.length == 0) {
+            return -1;
         }
-        return file.delete();
+        return songs[sAllSongsIdx++];
     }
 
     /**
@@ -95,7 +95,10 @@ public class FragmentShowQueue extends Fragment
     @Override
     public void onCreateContextMenu(ContextMenu menu, View listView, ContextMenu.ContextMenuInfo absInfo) {
         AdapterView.AdapterContextMenuInfo info = (AdapterView.AdapterContextMenuInfo) absInfo;
-        FpTrack song = mService.getSongByQueuePosition(info.position);
+        FpTrack song = mListAdapter.getItem(info.position);
+        if (song == null) {
+            return;
+        }
 
         Intent intent = new Intent();
         intent.putExtra(AdapterLibrary.DATA_ID, song.id);
@@ -121,7 +124,8 @@ public class FragmentShowQueue extends Fragment
         int itemId = item.getItemId();
         int pos = intent.getIntExtra(AdapterLibrary.DATA_POSITION, -1);
 
-        FpTrack song = mService.getSongByQueuePosition(pos);
+        // The song shown in the row, the queue may have changed since
+        FpTrack song = pos >= 0 && pos < mListAdapter.getCount() ? mListAdapter.getItem(pos) : null;
         switch (itemId) {
             case CTX_MENU_PLAY:
                 onItemClick(null, null, pos, -1);
@@ -189,32 +193,96 @@ public class FragmentShowQueue extends Fragment
     public void refreshSongQueueList(final boolean scroll) {
         getActivity().runOnUiThread(new Runnable() {
             public void run() {
-                int i, stotal, spos;
-                stotal = mService.getTimelineLength();   /*
-                 * Total number of songs in queue
-                 */
+                loadSongQueueList(scroll);
+            }
+        });
+    }
 
-                spos = mService.getTimelinePosition(); /*
-                 * Current position in queue
-                 */
+    /**
+     * Shows the latest timeline snapshot; called on the UI thread
+     *
+     * @param scroll enable or disable jumping to the currently playing item
+     */
+    private void loadSongQueueList(boolean scroll) {
+        FpTrackTimelineSnapshot snapshot = mService.getTimelineSnapshot();
+        int spos = snapshot.getPosition();
 
-                mListAdapter.clear();                    /*
-                 * Flush all existing entries...
-                 */
+        mListAdapter.highlightRow(spos);         /*
+         * highlight current position
+         */
 
-                mListAdapter.highlightRow(spos);         /*
-                 * and highlight current position
-                 */
+        mListAdapter.setSnapshot(snapshot);
 
-                for (i = 0; i < stotal; i++) {
-                    mListAdapter.add(mService.getSongByQueuePosition(i));
-                }
+        if (scroll) {
+            scrollToCurrentSong(spos);
+        }
+    }
 
-                if (scroll) {
-                    scrollToCurrentSong(spos);
-                }
+    /**
+     * Shows the snapshot after a timeline change, keeping the first visible
+     * song in place; called on the UI thread
+     */
+    private void applySongQueueDiff(FpTrackTimelineDiff diff) {
+        // Already shown
+        if (diff.getToVersion() <= mListAdapter.getVersion()) {
+            return;
+        }
+
+        FpTrackTimelineSnapshot snapshot = mService.getTimelineSnapshot();
+        boolean chained = !diff.isReset() && diff.getFromVersion() == mListAdapter.getVersion() && snapshot.getVersion() == diff.getToVersion();
+
+        // Scroll anchor
+        View child = mListView.getChildAt(0);
+        int anchor = mListView.getFirstVisiblePosition();
+        int top = null == child ? 0 : child.getTop();
+        if (chained) {
+            anchor = mapPosition(diff, anchor);
+        }
+
+        mListAdapter.highlightRow(snapshot.getPosition());
+        mListAdapter.setSnapshot(snapshot);
+
+        if (null != child && anchor != mListView.getFirstVisiblePosition()) {
+            mListView.setSelectionFromTop(Math.min(anchor, Math.max(0, snapshot.size() - 1)), top);
+        }
+    }
+
+    /**
+     * Returns where a position ends up after the changes of a diff
+     */
+    private static int mapPosition(FpTrackTimelineDiff diff, int position) {
+        for (FpTrackTimelineDiff.Range range : diff.getRanges()) {
+            switch (range.type) {
+                case FpTrackTimelineDiff.TYPE_INSERT:
+                    if (range.position <= position) {
+                        position += range.count;
+                    }
+                    break;
+
+                case FpTrackTimelineDiff.TYPE_REMOVE:
+                    if (position >= range.position + range.count) {
+                        position -= range.count;
+                    } else if (position >= range.position) {
+                        position = range.position;
+                    }
+                    break;
+
+                case FpTrackTimelineDiff.TYPE_MOVE:
+                    if (position == range.position) {
+                        position = range.to;
+                    } else if (range.position < position && range.to >= position) {
+                        position--;
+                    } else if (range.position > position && range.to <= position) {
+                        position++;
+                    }
+                    break;
+
+                case FpTrackTimelineDiff.TYPE_PERMUTE:
+                    // The whole list changed: keep the scroll position
+                    break;
             }
-        });
+        }
+        return position;
     }
 
     /**
@@ -245,16 +313,20 @@ public class FragmentShowQueue extends Fragment
     public void setSong(long uptime, FpTrack song) {
         if (mService == null) {
             mService = FpServiceRendering.get(getActivity());
-            onTimelineChanged();
+            refreshSongQueueList(false);
         }
     }
 
     /**
      * Called after the timeline changed
      */
-    public void onTimelineChanged() {
+    public void onTimelineChanged(final FpTrackTimelineDiff diff) {
         if (mService != null) {
-            refreshSongQueueList(false);
+            getActivity().runOnUiThread(new Runnable() {
+                public void run() {
+                    applySongQueueDiff(diff);
+                }
+            });
         }
     }
 
@@ -124,16 +124,27 @@ public class PreferenceUtils {
     }
 
     public static void putFloatArray(SharedPreferences.Editor editor, String key, float[] array) {
+        String json = toJson(array);
+        if (null != json) {
+            editor.putString(key, json);
+            editor.commit();
+        }
+    }
+
+    /**
+     * Serialize a float array, null on error
+     */
+    public static String toJson(float[] array) {
         try {
             JSONArray json = new JSONArray();
             for(float f : array) {
                 json.put(f);
             }
-            editor.putString(key, json.toString());
-            editor.commit();
+            return json.toString();
         } catch(JSONException e) {
-            Log.e(Constants.LOG_TAG, "putFloatArray: " + e.getClass() + ": " + e.getLocalizedMessage());
+            Log.e(Constants.LOG_TAG, "toJson: " + e.getClass() + ": " + e.getLocalizedMessage());
         }
+        return null;
     }
 }
 
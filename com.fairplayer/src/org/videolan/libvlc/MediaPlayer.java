@@ -22,6 +22,8 @@
 
 package org.videolan.libvlc;
 
+import android.os.SystemClock;
+
 @SuppressWarnings("unused, JniMissingFunction")
 public class MediaPlayer extends VLCObject<MediaPlayer.Event> {
 
@@ -331,6 +333,8 @@ public class MediaPlayer extends VLCObject<MediaPlayer.Event> {
     private boolean mAudioReset = false;
     private String mAudioOutput = null;
     private String mAudioOutputDevice = null;
+    private volatile long mTimeSnapshot = -1;
+    private volatile long mTimeSnapshotClock = 0;
 
     private final AWindow mWindow = new AWindow(new AWindow.SurfaceCallback() {
         @Override
@@ -775,6 +779,23 @@ public class MediaPlayer extends VLCObject<MediaPlayer.Event> {
      */
     public native long getTime();
 
+    /**
+     * Get the last time reported by a TimeChanged event, without a native call.
+     * Recorded even when nobody is subscribed to TimeChanged.
+     * @return the time in ms, or -1 if none was reported yet
+     */
+    public long getTimeSnapshot() {
+        return mTimeSnapshot;
+    }
+
+    /**
+     * Get the {@link SystemClock#elapsedRealtime()} at which the last
+     * TimeChanged event was received.
+     */
+    public long getTimeSnapshotClock() {
+        return mTimeSnapshotClock;
+    }
+
     /**
      * Sets the movie time (in ms), if any media is being played.
      * @param time: Time in ms.
@@ -812,6 +833,20 @@ public class MediaPlayer extends VLCObject<MediaPlayer.Event> {
         super.setEventListener(listener);
     }
 
+    @Override
+    protected boolean isStatefulEvent(int eventType) {
+        switch (eventType) {
+            case Event.MediaChanged:
+            case Event.Stopped:
+            case Event.EndReached:
+            case Event.EncounteredError:
+            case Event.Vout:
+            case Event.TimeChanged:
+                return true;
+        }
+        return false;
+    }
+
     @Override
     protected synchronized Event onEventNative(int eventType, long arg1, float arg2) {
         switch (eventType) {
@@ -826,7 +861,9 @@ public class MediaPlayer extends VLCObject<MediaPlayer.Event> {
             case Event.Paused:
                 return new Event(eventType);
             case Event.TimeChanged:
-                return new Event(eventType, arg1);
+                mTimeSnapshotClock = SystemClock.elapsedRealtime();
+                mTimeSnapshot = arg1;
+                return isSubscribed(eventType) ? new Event(eventType, arg1) : null;
             case Event.PositionChanged:
                 return new Event(eventType, arg2);
             case Event.Vout:
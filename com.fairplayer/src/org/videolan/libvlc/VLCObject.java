@@ -24,11 +24,14 @@ import android.os.Handler;
 import android.os.Looper;
 
 import java.lang.ref.WeakReference;
+import java.util.concurrent.Executor;
 
 @SuppressWarnings("JniMissingFunction")
 abstract class VLCObject<T extends VLCEvent> {
-    private VLCEvent.Listener<T> mEventListener = null;
+    private volatile VLCEvent.Listener<T> mEventListener = null;
     private Handler mHandler = null;
+    private Executor mExecutor = null;
+    private long mEventMask = ~0L;
     private int mNativeRefCount = 1;
 
     /**
@@ -80,7 +83,9 @@ abstract class VLCObject<T extends VLCEvent> {
 
     /**
      * Set an event listener.
-     * Events are sent via the android main thread.
+     * Events are sent via the android main thread, unless another dispatcher
+     * was set with {@link #setEventDispatcher(Looper)} or
+     * {@link #setEventDispatcher(Executor)}.
      *
      * @param listener see {@link VLCEvent.Listener}
      */
@@ -88,10 +93,80 @@ abstract class VLCObject<T extends VLCEvent> {
         if (mHandler != null)
             mHandler.removeCallbacksAndMessages(null);
         mEventListener = listener;
-        if (mEventListener != null && mHandler == null)
+        if (mEventListener != null && mHandler == null && mExecutor == null)
             mHandler = new Handler(Looper.getMainLooper());
     }
 
+    /**
+     * Send the events to the listener via the given looper.
+     *
+     * @param looper looper to dispatch on, null for the android main thread
+     */
+    public synchronized void setEventDispatcher(Looper looper) {
+        if (mHandler != null)
+            mHandler.removeCallbacksAndMessages(null);
+        mExecutor = null;
+        mHandler = new Handler(looper != null ? looper : Looper.getMainLooper());
+    }
+
+    /**
+     * Send the events to the listener via the given executor.
+     *
+     * @param executor executor to dispatch with
+     */
+    public synchronized void setEventDispatcher(Executor executor) {
+        if (executor == null)
+            throw new IllegalArgumentException("Executor is null");
+        if (mHandler != null)
+            mHandler.removeCallbacksAndMessages(null);
+        mHandler = null;
+        mExecutor = executor;
+    }
+
+    /**
+     * Only dispatch the given event types to the listener. Other events are
+     * dropped as soon as they come from native code, before any allocation.
+     *
+     * @param types event types, none to subscribe to every event
+     */
+    public synchronized void setEventTypes(int... types) {
+        if (types == null || types.length == 0) {
+            mEventMask = ~0L;
+            return;
+        }
+        long mask = 0L;
+        for (int type : types)
+            mask |= eventBit(type);
+        mEventMask = mask;
+    }
+
+    /**
+     * Returns true if a listener is subscribed to the event type.
+     * Lets onEventNative() skip building events nobody will receive.
+     *
+     * @param eventType event type
+     */
+    protected synchronized boolean isSubscribed(int eventType) {
+        return mEventListener != null && (mEventMask & eventBit(eventType)) != 0;
+    }
+
+    /**
+     * Bit of an event type in the subscription mask
+     */
+    private static long eventBit(int eventType) {
+        return 1L << (eventType & 0x3F);
+    }
+
+    /**
+     * Returns true if onEventNative() updates cached state for this event
+     * type, so it must run even when nobody is subscribed to the event.
+     *
+     * @param eventType event type
+     */
+    protected boolean isStatefulEvent(int eventType) {
+        return true;
+    }
+
     /**
      * Called when libvlc send events.
      *
@@ -115,7 +190,12 @@ abstract class VLCObject<T extends VLCEvent> {
     private synchronized void dispatchEventFromNative(int eventType, long arg1, float arg2) {
         if (isReleased())
             return;
+        final boolean wanted = isSubscribed(eventType);
+        if (!wanted && !isStatefulEvent(eventType))
+            return;
         final T event = onEventNative(eventType, arg1, arg2);
+        if (!wanted)
+            return;
 
         class EventRunnable implements Runnable {
             private final VLCEvent.Listener<T> listener;
@@ -127,11 +207,17 @@ abstract class VLCObject<T extends VLCEvent> {
             }
             @Override
             public void run() {
-                listener.onEvent(event);
+                // The listener may have been replaced since the event was queued
+                if (listener == mEventListener)
+                    listener.onEvent(event);
             }
         }
 
-        if (event != null && mEventListener != null && mHandler != null)
+        if (event == null)
+            return;
+        if (mExecutor != null)
+            mExecutor.execute(new EventRunnable(mEventListener, event));
+        else if (mHandler != null)
             mHandler.post(new EventRunnable(mEventListener, event));
     }
     private native void nativeDetachEvents();